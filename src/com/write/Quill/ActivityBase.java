@@ -4,6 +4,8 @@ import name.vbraun.lib.pen.Hardware;
 import name.vbraun.view.write.HandwriterView;
 
 import com.write.Quill.data.Book;
+import com.write.Quill.data.BookBackup;
+import com.write.Quill.data.BookBackup.OnBackupProgressListener;
 import com.write.Quill.data.Bookshelf;
 import com.write.Quill.data.StorageAndroid;
 
@@ -91,7 +93,13 @@ public class ActivityBase extends Activity {
 
     private static Runnable backupAtExit = new Runnable() {
     	public void run() {
-    		Bookshelf.getBookshelf().backup();
+    		Bookshelf.getBookshelf().backup(backupFinished);
+    	}
+    };
+    
+    private static OnBackupProgressListener backupFinished = new OnBackupProgressListener() {
+    	public void onBackupProgress(BookBackup backup) {}
+    	public void onBackupFinished(BookBackup backup) {
     		Toast.makeText(context, R.string.activity_base_backed_up, Toast.LENGTH_SHORT).show();
     	}
     };
@@ -106,7 +114,7 @@ public class ActivityBase extends Activity {
     			backupHandler.postDelayed(automaticSave, automaticSaveIdle/3*2);
     		} else {
     			Book book = Bookshelf.getCurrentBook();
-    			book.save();
+    			book.saveInBackground();
     			Toast.makeText(context, R.string.activity_base_automatic_saved, Toast.LENGTH_SHORT).show();
     			backupHandler.postDelayed(automaticSave, automaticSaveDelay);
     		}
@@ -17,8 +17,8 @@ public class CommandClearPage extends Command {
 
 	public CommandClearPage(Page page) {
 		super(page);
-		strokes.addAll(page.strokes);
-		lineArt.addAll(page.lineArt);
+		strokes.addAll(page.getStrokes());
+		lineArt.addAll(page.getLineArt());
 	}
 
 	@Override
@@ -116,6 +116,17 @@ public class QuillWriterActivity
     private static final DialogThickness dialogThickness = new DialogThickness();
     private static final DialogAspectRatio dialogAspectRatio = new DialogAspectRatio();
     private static final DialogBackground dialogPaperType = new DialogBackground();
+    
+    // append the new ink to the journal every few seconds while writing
+    private final static int AUTOSAVE_INTERVAL = 10 * 1000;
+    private final Handler autosaveHandler = new Handler();
+    private final Runnable autosave = new Runnable() {
+    	public void run() {
+    		if (book != null)
+    			book.autosaveInBackground();
+    		autosaveHandler.postDelayed(this, AUTOSAVE_INTERVAL);
+    	}
+    };
 		
     /**
      *  Delete some preferences to test the default behavior
@@ -604,6 +615,7 @@ public class QuillWriterActivity
     
     private void switchToPage(Page page) {
     	mView.setPageAndZoomOut(page);
+    	mView.setAdjacentPages(book.adjacentPages());
     	TagOverlay overlay = new TagOverlay(getApplicationContext(), 
     				page.tags, book.currentPageNumber(), mView.isToolboxOnLeft());
     	mView.setOverlay(overlay);
@@ -770,6 +782,7 @@ public class QuillWriterActivity
     	updateUndoRedoIcons();
     	setKeepScreenOn();
     	mView.startInput();
+    	autosaveHandler.postDelayed(autosave, AUTOSAVE_INTERVAL);
     }
     
     @Override 
@@ -780,7 +793,8 @@ public class QuillWriterActivity
         	HideBar.showSystembar(getApplicationContext());
         super.onPause();
     	mView.interrupt();
-        book.save();
+    	autosaveHandler.removeCallbacks(autosave);
+        book.saveInBackground();
         
         SharedPreferences settings= PreferenceManager.getDefaultSharedPreferences(this);     
         SharedPreferences.Editor editor = settings.edit();
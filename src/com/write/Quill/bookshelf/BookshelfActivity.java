@@ -62,6 +62,12 @@ public class BookshelfActivity
         ActivityBase.quillDecRefcount();
 	}
 	
+	@Override
+	protected void onDestroy() {
+		adapter.shutdown();
+		super.onDestroy();
+	}
+	
 	@Override
 	public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
 		if (position == adapter.getCount()-1) {
@@ -1,8 +1,12 @@
 package com.write.Quill.bookshelf;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -21,13 +25,26 @@ import com.write.Quill.data.Bookshelf.BookPreview;
 public class BookshelfAdapter extends ArrayAdapter<BookPreview> {
 	private final static String TAG = "BookshelfAdapter";
 	
+	private static final int COVER_SIZE = 150;
+	
 	private Context context;
+	private final Handler handler = new Handler();
+	// loads the covers in the background, one at a time
+	private final ExecutorService coverLoader = Executors.newSingleThreadExecutor();
+	private Bitmap icon = null;
 	
 	public BookshelfAdapter(Context c) {
 		super(c, R.layout.bookshelf_item, Bookshelf.getBookPreviewList());
 		context = c;
 	}
 	
+	/**
+	 * Stop loading covers, the adapter can not be used any more afterwards
+	 */
+	public void shutdown() {
+		coverLoader.shutdownNow();
+	}
+	
 	@Override
 	public int getCount() {
 		return super.getCount()+1;
@@ -54,17 +71,56 @@ public class BookshelfAdapter extends ArrayAdapter<BookPreview> {
         if (position == Bookshelf.getBookPreviewList().size()) {
             title.setText(context.getString(R.string.edit_notebook_title_new));
             summary.setText("");
-            Bitmap icon = BitmapFactory.decodeResource(context.getResources(), R.drawable.icon_150);
-            thumb.setImageBitmap(icon);
+            thumb.setTag(null);
+            thumb.setImageBitmap(getIcon());
             return layout;
         }
         
         Bookshelf.BookPreview nb = Bookshelf.getBookPreviewList().get(position);
         title.setText(nb.getTitle());
         summary.setText(nb.getSummary());
-        thumb.setImageBitmap(nb.getThumbnail(150, 150));
+        thumb.setTag(nb);
+        Bitmap cover = nb.getCachedThumbnail();
+        if (cover != null)
+        	thumb.setImageBitmap(cover);
+        else {
+        	thumb.setImageBitmap(null);
+        	loadCover(thumb, nb);
+        }
         return layout;
     }
 	
+	private Bitmap getIcon() {
+		if (icon == null)
+			icon = BitmapFactory.decodeResource(context.getResources(), R.drawable.icon_150);
+		return icon;
+	}
+	
+	/**
+	 * Load the cover in the background and show it unless the view has been 
+	 * bound to another notebook in the meantime
+	 * @param thumb
+	 * @param nb
+	 */
+	private void loadCover(final ImageView thumb, final BookPreview nb) {
+		if (coverLoader.isShutdown())
+			return;
+		coverLoader.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (thumb.getTag() != nb) 
+					return;
+				final Bitmap cover = nb.getThumbnail(COVER_SIZE, COVER_SIZE);
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (thumb.getTag() == nb)
+							thumb.setImageBitmap(cover);
+					}
+				});
+			}
+		});
+	}
+	
 
 }
@@ -7,6 +7,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.write.Quill.ActivityBase;
@@ -14,6 +15,7 @@ import com.write.Quill.QuillWriterActivity;
 import com.write.Quill.R;
 import com.write.Quill.data.Book.BookIOException;
 import com.write.Quill.data.Bookshelf;
+import com.write.Quill.data.Bookshelf.BookPreview;
 
 /**
  * This activity is called if the user picks a .quill file with a file manager
@@ -43,8 +45,29 @@ public class ImportBackupActivity extends ActivityBase {
         final String filename = uri.getEncodedPath();
         file = new File(filename);
         Log.e(TAG, "importing backup file "+file.getAbsolutePath());
+        new Thread(previewRunnable).start();
 	}
 	
+	/**
+	 * Read the title from the archive in a background thread, it takes as 
+	 * long as loading the first page
+	 */
+	private Runnable previewRunnable = new Runnable() {
+		@Override
+		public void run() {
+			final BookPreview preview = Bookshelf.getBookshelf().previewBackup(file);
+			if (preview == null) return;
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (isFinishing()) return;
+					TextView label = (TextView) findViewById(R.id.import_backup_label);
+					label.setText(getString(R.string.preferences_importing_backup, preview.getTitle()));
+				}
+			});
+		}
+	};
+	
 	private Runnable importRunnable = new Runnable() {
 		@Override
 		public void run() {
@@ -1,24 +1,35 @@
 package com.write.Quill.data;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
 
 import com.write.Quill.BookModifiedListener;
 import com.write.Quill.data.Bookshelf.BookPreview;
 import com.write.Quill.data.TagManager.TagSet;
 
+import name.vbraun.view.write.BlobStore;
+import name.vbraun.view.write.MappedDataInputStream;
 import name.vbraun.view.write.Page;
+import name.vbraun.view.write.PageCache;
+import name.vbraun.view.write.PageDelta;
 
 import junit.framework.Assert;
 
@@ -37,14 +48,28 @@ import android.util.Log;
  */
 public class Book {
 	private static final String TAG = "Book";
-	private static final String QUILL_DATA_FILE_SUFFIX = ".quill_data";
+	protected static final String QUILL_DATA_FILE_SUFFIX = ".quill_data";
 	protected static final String INDEX_FILE = "index"+QUILL_DATA_FILE_SUFFIX;
+	protected static final String PAGE_TABLE_FILE = "pages"+QUILL_DATA_FILE_SUFFIX;
+	protected static final String JOURNAL_FILE = "journal"+QUILL_DATA_FILE_SUFFIX;
+	protected static final String BLOB_TABLE_FILE = "blobs"+QUILL_DATA_FILE_SUFFIX;
+	protected static final String TEMP_FILE_SUFFIX = ".tmp";
+	
+	// save in full instead of appending to the journal after this many changes
+	private static final int JOURNAL_LIMIT = 1000;
 	protected static final String PAGE_FILE_PREFIX = "page_";
+	
+	// number of lazily loaded pages whose content is kept in memory
+	private static final int PAGE_CACHE_SIZE = 12;
+	
+	// read page headers on a worker pool if there are at least that many not in the page table
+	private static final int PARALLEL_LOAD_MIN_PAGES = 8;
+	private static final int PARALLEL_LOAD_MAX_THREADS = 4;
 
 	// You must set this to true if you change metadata (e.g. title)
 	private boolean modified = false;
 	
-	private boolean isModified() {
+	public boolean isModified() {
 		if (modified) return true;
 		for (Page page : pages)
 			if (page.isModified())
@@ -99,6 +124,10 @@ public class Book {
 
 	// pages is never empty
 	protected final LinkedList<Page> pages = new LinkedList<Page>();
+	private final PageCache pageCache = new PageCache(PAGE_CACHE_SIZE);
+	
+	// number of records in the journal
+	private int journalDeltas = 0;
 	private TagSet filter = tagManager.newTagSet();
 	protected int currentPage = 0;
 
@@ -233,6 +262,10 @@ public class Book {
 			else
 				Assert.fail("Cannot create empty book");
 		}
+		// the undo manager keeps the page, but its file will be deleted on save
+		page.ensureLoaded();
+		page.touch();
+		pageCache.remove(page);
 		pages.remove(position);
 		updateFilteredPages();
 		touchAllSubsequentPages(position);
@@ -275,7 +308,9 @@ public class Book {
 	public Page currentPage() {
 		// Log.v(TAG, "current_page() "+currentPage+"/"+pages.size());
 		Assert.assertTrue(currentPage >= 0 && currentPage < pages.size());
-		return pages.get(currentPage);
+		Page page = pages.get(currentPage);
+		page.ensureLoaded();
+		return page;
 	}
 
 	public void setCurrentPage(Page page) {
@@ -382,6 +417,18 @@ public class Book {
 		return pages.get(currentPage);
 	}
 
+	/**
+	 * @return The pages before and after the current page, if any
+	 */
+	public LinkedList<Page> adjacentPages() {
+		LinkedList<Page> adjacent = new LinkedList<Page>();
+		if (currentPage > 0)
+			adjacent.add(pages.get(currentPage - 1));
+		if (currentPage + 1 < pages.size())
+			adjacent.add(pages.get(currentPage + 1));
+		return adjacent;
+	}
+
 	// inserts a page at position and makes it the current page
 	// empty pages are removed
 	public Page insertPage(Page template, int position) {
@@ -521,25 +568,172 @@ public class Book {
 		loadingFinishedHook();
 	}
 
+	/**
+	 * Load a truncated preview of a compressed book archive. Only the index 
+	 * and the first pages are decompressed. Images are not shown, since 
+	 * they are not extracted.
+	 * @param archive A compressed archive, see {@link BookArchive}
+	 * @param pageLimit The number of pages to load
+	 * @return The preview book, which can not be saved
+	 * @throws BookLoadException
+	 */
+	public static Book loadArchivePreview(File archive, int pageLimit) throws BookLoadException {
+		Book book = new Book();
+		book.allowSave = false;
+		ZipFile zip = null;
+		try {
+			zip = BookArchive.openCompressed(archive);
+			DataInputStream dataIn = new DataInputStream(new BufferedInputStream(
+					BookArchive.getInputStream(zip, INDEX_FILE)));
+			LinkedList<UUID> pageUUIDs = book.loadIndex(dataIn);
+			dataIn.close();
+			for (UUID uuid : pageUUIDs) {
+				if (book.pages.size() >= pageLimit) break;
+				String pageFile = getPageFile(null, uuid).getName();
+				dataIn = new DataInputStream(new BufferedInputStream(
+						BookArchive.getInputStream(zip, pageFile)));
+				book.pages.add(new Page(dataIn, book.tagManager, null));
+				dataIn.close();
+			}
+		} catch (IOException e) {
+			throw new BookLoadException(e.getMessage());
+		} finally {
+			if (zip != null) try {
+				zip.close();
+			} catch (IOException e) {}
+		}
+		if (book.pages.isEmpty())
+			throw new BookLoadException("No pages in book archive");
+		book.loadingFinishedHook();
+		return book;
+	}
+	
 	// save data internally. To load, use the constructor.
 	public void save() {
 		Storage storage = Storage.getInstance();
 		save(storage);
 	}
 
-	// save data internally. To load, use the constructor.
+	// save data internally and wait until it is written. To load, use the constructor.
 	protected void save(Storage storage) {
+		BookSnapshot snapshot = snapshot(storage);
+		BookSaver saver = BookSaver.getInstance();
+		if (snapshot != null)
+			saver.save(snapshot);
+		saver.waitUntilSaved();
+		Bookshelf.getBookshelf().reloadPreview(this);
+	}
+
+	/**
+	 * Save data internally in a background thread. The modified pages are 
+	 * serialized right away, so the book can be changed as soon as this returns.
+	 */
+	public void saveInBackground() {
+		BookSnapshot snapshot = snapshot(Storage.getInstance());
+		if (snapshot == null)
+			return;
+		final Book book = this;
+		snapshot.setOnSaved(new Runnable() {
+			@Override
+			public void run() {
+				Bookshelf.previewChanged(book);
+			}
+		});
+		BookSaver.getInstance().save(snapshot);
+	}
+	
+	/**
+	 * Save the changes in a background thread. If only strokes and lines were
+	 * added or erased, the changes are appended to the journal. Otherwise, the 
+	 * book is saved in full.
+	 */
+	public void autosaveInBackground() {
+		if (!isModified())
+			return;
+		BookSnapshot snapshot = journalSnapshot(Storage.getInstance());
+		if (snapshot == null)
+			saveInBackground();
+		else if (!snapshot.isEmpty())
+			BookSaver.getInstance().save(snapshot);
+	}
+	
+	/**
+	 * Serialize the changes since the last save as journal records. A record
+	 * contains the page uuid and generation, followed by the PageDelta.
+	 * @param storage
+	 * @return The snapshot or null if the book needs to be saved in full
+	 */
+	private BookSnapshot journalSnapshot(Storage storage) {
 		Assert.assertTrue(allowSave);
-		BookDirectory dir = storage.getBookDirectory(getUUID());
+		if (modified || journalDeltas > JOURNAL_LIMIT)
+			return null;
+		for (Page page : pages)
+			if (page.getDeltas() == null)
+				return null;
+		BookSnapshot snapshot = new BookSnapshot(getUUID(), storage.getBookDirectory(getUUID()), false);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dataOut = new DataOutputStream(bytes);
 		try {
-			doSaveBookInDirectory(dir);
-		} catch (BookSaveException e ) {
+			for (Page page : pages) {
+				for (byte[] delta : page.getDeltas()) {
+					bytes.reset();
+					dataOut.writeUTF(page.getUUID().toString());
+					dataOut.writeInt(page.getGeneration());
+					dataOut.write(delta);
+					snapshot.addJournalRecord(bytes.toByteArray());
+					journalDeltas++;
+				}
+				page.markAsJournaled();
+			}
+		} catch (IOException e) {
 			storage.LogError(TAG, e.getLocalizedMessage());
-		} catch (IOException e ) {
+			return null;
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Serialize the index and the modified pages, and mark the book as saved.
+	 * The sample points of the pages are only copied, they are compressed 
+	 * by the {@link BookSaver}.
+	 * @param storage
+	 * @return The snapshot or null if there was an error
+	 */
+	private BookSnapshot snapshot(Storage storage) {
+		Assert.assertTrue(allowSave);
+		BookDirectory dir = storage.getBookDirectory(getUUID());
+		BookSnapshot snapshot = new BookSnapshot(getUUID(), dir, true);
+		snapshot.addCreatedBlobs(BlobStore.takeCreated(dir));
+		journalDeltas = 0;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dataOut = new DataOutputStream(bytes);
+		try {
+			saveIndex(dataOut);
+			snapshot.setIndex(bytes.toByteArray());
+			for (Page page : pages) {
+				snapshot.addInUse(page.getUUID(), page.getBlobNames());
+				if (page.hasContentError()) {
+					// keep the page file, it might be readable the next time
+					storage.LogError(TAG, "Not saving unreadable page "+page.getUUID());
+					continue;
+				}
+				if (page.isModified()) {
+					page.newGeneration();
+					snapshot.addPage(page.getUUID(), savePage(page));
+				}
+				if (page.hasHeader()) {
+					bytes.reset();
+					page.writeHeader(dataOut);
+					snapshot.addHeader(page.getUUID(), bytes.toByteArray());
+				}
+			}
+		} catch (IOException e) {
 			storage.LogError(TAG, e.getLocalizedMessage());
+			return null;
+		} finally {
+			markAsSaved();
 		}
-		markAsSaved();
-		Bookshelf.getBookshelf().reloadPreview(this);
+		return snapshot;
 	}
 	
 	/**
@@ -564,38 +758,114 @@ public class Book {
 			Storage.getInstance().LogError(TAG, "I recovered pages missing in notebook index");
 		}
 		
+		if (pageLimit >= 0)
+			while (pageUUIDs.size() > pageLimit)
+				pageUUIDs.removeLast();
+		
+		HashMap<UUID, Page> pageTable = loadPageTable(dir);
+		LinkedList<UUID> pageUUIDsToLoad = new LinkedList<UUID>();
+		for (UUID uuid : pageUUIDs)
+			if (!pageTable.containsKey(uuid))
+				pageUUIDsToLoad.add(uuid);
+		if (pageUUIDsToLoad.size() >= PARALLEL_LOAD_MIN_PAGES)
+			pageTable.putAll(loadPageHeadersInParallel(pageUUIDsToLoad, dir));
+		else
+			for (UUID uuid : pageUUIDsToLoad)
+				pageTable.put(uuid, loadPage(uuid, dir));
+
 		pages.clear();
 		for (UUID uuid : pageUUIDs) {
-			if (pageLimit >=0 && pages.size() >= pageLimit) return;
-			loadPage(uuid, dir);
+			Page page = pageTable.get(uuid);
+			if (!page.getUUID().equals(uuid)) {
+				Storage.getInstance().LogError(TAG, "Page UUID mismatch.");
+				page.touch();
+			}
+			pages.add(page);
 		}
+		replayJournal(dir);
 	}
 	
-	private void doSaveBookInDirectory(BookDirectory dir) throws BookSaveException, IOException {
-		if (!dir.isDirectory() && !dir.mkdir())
-			throw new BookSaveException("Error creating directory "+dir.toString());
-		saveIndex(dir);
-		LinkedList<UUID> pageUUIDsInDir = dir.listPages();
-		LinkedList<UUID> blobUUIDsInDir = dir.listBlobs();
-		for (Page page : getPages()) {
-			pageUUIDsInDir.remove(page.getUUID());
-			blobUUIDsInDir.removeAll(page.getBlobUUIDs());
-			if (!page.isModified())	continue;
-			savePage(page, dir);
-		}
-
-		for (UUID unused: pageUUIDsInDir) {
-			File file = dir.getFile(unused);
-			Log.d(TAG, "Deleteing unusued page file: "+file.toString());
-			file.delete();
+	/**
+	 * Read the headers of the page files that are missing from the page 
+	 * table on a small worker pool. Only the headers are read, the content 
+	 * is still decoded when the page is first drawn. So this only helps if 
+	 * there is no valid page table, for example after an upgrade, where 
+	 * every page file has to be opened. The pages are added to the book in 
+	 * index order by the caller.
+	 * @param pageUUIDs
+	 * @param dir
+	 * @return The lazily loaded pages by uuid
+	 * @throws IOException
+	 */
+	private HashMap<UUID, Page> loadPageHeadersInParallel(LinkedList<UUID> pageUUIDs, final File dir) 
+			throws IOException {
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), PARALLEL_LOAD_MAX_THREADS);
+		Log.d(TAG, "Reading "+pageUUIDs.size()+" page headers with "+threads+" threads");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+		LinkedList<Future<Page>> futures = new LinkedList<Future<Page>>();
+		HashMap<UUID, Page> result = new HashMap<UUID, Page>();
+		try {
+			for (final UUID uuid : pageUUIDs)
+				futures.add(executor.submit(new Callable<Page>() {
+					@Override
+					public Page call() throws IOException {
+						return loadPage(uuid, dir);
+					}
+				}));
+			ListIterator<UUID> iter = pageUUIDs.listIterator();
+			for (Future<Page> future : futures)
+				result.put(iter.next(), future.get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while loading pages");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause.toString());
+		} finally {
+			executor.shutdownNow();
 		}
-		for (UUID unused: blobUUIDsInDir) {
-			File file = dir.getFile(unused);
-			Log.d(TAG, "Deleteing unusued blob file: "+file.toString());
-			file.delete();
+		return result;
+	}
+	
+	/**
+	 * Apply the changes from the journal that are not in the page files yet,
+	 * that is, whose generation matches the page. The pages are marked as 
+	 * modified, so the next save replaces the journal.
+	 * @param dir
+	 */
+	private void replayJournal(File dir) {
+		File file = new File(dir, JOURNAL_FILE);
+		if (!file.exists())
+			return;
+		HashMap<UUID, Page> pageByUUID = new HashMap<UUID, Page>();
+		for (Page page : pages)
+			pageByUUID.put(page.getUUID(), page);
+		DataInputStream journal = null;
+		int records = 0;
+		try {
+			journal = MappedDataInputStream.map(file);
+			byte[] record;
+			while ((record = JournalRecord.read(journal)) != null) {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+				Page page = pageByUUID.get(UUID.fromString(in.readUTF()));
+				if (page == null || page.getGeneration() != in.readInt())
+					continue;
+				PageDelta.apply(page, in);
+				page.touch();
+				records++;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Ignoring the end of the journal: "+e.getMessage());
+		} finally {
+			try {
+				if (journal != null) journal.close();
+			} catch (IOException e) {}
 		}
+		Log.d(TAG, "Replayed "+records+" journal records");
 	}
-
 	
 	
 	/////////////////////////////
@@ -618,23 +888,6 @@ public class Book {
 		}
 	}
 
-	private void saveIndex(File dir) throws IOException, BookSaveException {
-		File indexFile = new File(dir, INDEX_FILE);
-		FileOutputStream fos = null;
-		BufferedOutputStream buffer = null;
-		DataOutputStream dataOut = null;
-		try {
-			fos = new FileOutputStream(indexFile);
-			buffer = new BufferedOutputStream(fos);
-			dataOut = new DataOutputStream(buffer);
-			saveIndex(dataOut);
-		} finally {
-			if (dataOut != null) dataOut.close();
-			else if (buffer != null) buffer.close();
-			else if (fos != null) fos.close();
-		}			
-	}
-
 	private LinkedList<UUID> loadIndex(DataInputStream dataIn) throws IOException, BookLoadException {
 		Log.d(TAG, "Loading book index");
 		int n_pages;
@@ -672,53 +925,68 @@ public class Book {
 		getFilter().write_to_stream(dataOut);
 	}
 
-	private File getPageFile(File dir, UUID uuid) {
+	protected static File getPageFile(File dir, UUID uuid) {
 		return new File(dir, PAGE_FILE_PREFIX + uuid.toString() + QUILL_DATA_FILE_SUFFIX);
 	}
 	
-	private void loadPage(UUID uuid, File dir) throws IOException {
-		Log.d(TAG, "Loading page "+uuid);
+	/**
+	 * Load the page header. Called from the page loading threads, so it must
+	 * not touch the book.
+	 * @param uuid
+	 * @param dir
+	 * @return The lazily loaded page
+	 * @throws IOException
+	 */
+	private Page loadPage(UUID uuid, File dir) throws IOException {
+		Log.d(TAG, "Reading page header "+uuid);
 		File file = getPageFile(dir, uuid);
-		FileInputStream fis = null;
-		BufferedInputStream buffer = null;
-		DataInputStream dataIn = null;
-		try {
-			fis = new FileInputStream(file);
-			buffer = new BufferedInputStream(fis);
-			dataIn = new DataInputStream(buffer);
-			Page page = new Page(dataIn, tagManager, dir);
-			if (!page.getUUID().equals(uuid)) {
-				Storage.getInstance().LogError(TAG, "Page UUID mismatch.");
-				page.touch();
-			}
-			pages.add(page);
-		} finally {
-			if (dataIn != null) dataIn.close();
-			else if (buffer != null) buffer.close();
-			else if (fis != null) fis.close();
-		}
+		return Page.loadLazily(file, tagManager, dir, pageCache);
 	}
 
-	private void savePage(Page page, File dir) throws IOException {
-		File file = getPageFile(dir, page.getUUID());
-		FileOutputStream fos = null;
-		BufferedOutputStream buffer = null;
-		DataOutputStream dataOut = null;
+	/**
+	 * Load the page headers from the page table. Entries whose page file has
+	 * changed since the table was written are skipped.
+	 * @param dir
+	 * @return The lazily loaded pages by uuid, empty if there is no valid page table
+	 */
+	private HashMap<UUID, Page> loadPageTable(File dir) {
+		HashMap<UUID, Page> table = new HashMap<UUID, Page>();
+		File tableFile = new File(dir, PAGE_TABLE_FILE);
+		if (!tableFile.exists())
+			return table;
+		DataInputStream dataIn = null;
 		try {
-			fos = new FileOutputStream(file);
-			buffer = new BufferedOutputStream(fos);
-			dataOut = new DataOutputStream(buffer);
-			savePage(page, dataOut);
+			dataIn = MappedDataInputStream.map(tableFile);
+			int version = dataIn.readInt();
+			if (version != 1)
+				throw new IOException("Unknown page table version");
+			int n = dataIn.readInt();
+			for (int i=0; i<n; i++) {
+				long lastModified = dataIn.readLong();
+				long length = dataIn.readLong();
+				UUID uuid = UUID.fromString(dataIn.readUTF());
+				File file = getPageFile(dir, uuid);
+				Page page = Page.readHeader(dataIn, tagManager, file, dir, pageCache);
+				if (file.lastModified() != lastModified || file.length() != length) {
+					Log.d(TAG, "Page table entry is outdated: "+uuid);
+					continue;
+				}
+				table.put(uuid, page);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading page table: "+e.getMessage());
+			table.clear();
 		} finally {
-			if (dataOut != null) dataOut.close();
-			else if (buffer != null) buffer.close();
-			else if (fos != null) fos.close();
+			try {
+				if (dataIn != null) dataIn.close();
+			} catch (IOException e) {}
 		}
+		return table;
 	}
 
-	protected void savePage(Page page, DataOutputStream dataOut) throws IOException {
+	protected Page.Encoding savePage(Page page) throws IOException {
 		Log.d(TAG, "Saving book page "+page.getUUID());
-		page.writeToStream(dataOut);
+		return page.encode();
 	}
 
 }
@@ -0,0 +1,323 @@
+package com.write.Quill.data;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.xeustechnologies.jtar.TarConstants;
+import org.xeustechnologies.jtar.TarEntry;
+
+import com.write.Quill.data.Storage.StorageIOException;
+
+/**
+ * Archives of a book directory
+ *
+ * The archive contains one entry "notebook_<uuid>/<name>" for each file of
+ * the book. There are two formats:
+ * <ul>
+ * <li> Compressed archives are zip files. The data files are deflated 
+ *      separately and the central directory at the end lists the offset of
+ *      every entry, so single files can be read without scanning the archive.
+ *      Images are already compressed and are stored as they are.
+ * <li> Plain tar archives, which older versions wrote. They are only 
+ *      extracted, not written. Only the headers are parsed by jtar, the file
+ *      contents are copied from the file channel with transferFrom.
+ * </ul>
+ * The format is detected from the first bytes.
+ *
+ * @author vbraun
+ *
+ */
+public class BookArchive {
+	@SuppressWarnings("unused")
+	private static final String TAG = "BookArchive";
+
+	// the local file header signature that every zip file starts with
+	private static final int ZIP_MAGIC = 0x504b0304;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * @param archive
+	 * @return Whether the file is a compressed archive, as opposed to a tar archive
+	 * @throws IOException
+	 */
+	public static boolean isCompressed(File archive) throws IOException {
+		FileInputStream fis = new FileInputStream(archive);
+		try {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			FileChannel in = fis.getChannel();
+			while (magic.hasRemaining())
+				if (in.read(magic) < 0)
+					return false;
+			return magic.getInt(0) == ZIP_MAGIC;
+		} finally {
+			fis.close();
+		}
+	}
+	
+	/**
+	 * Write the book directory to a compressed archive. The archive is written 
+	 * to a temporary file first and then renamed. The temporary file is 
+	 * deleted if anything fails.
+	 * @param dir The book directory
+	 * @param dest The archive file
+	 * @throws IOException
+	 */
+	public static void writeCompressed(File dir, File dest) throws IOException {
+		File temp = new File(dest.getPath() + Book.TEMP_FILE_SUFFIX);
+		boolean renamed = false;
+		FileOutputStream fos = new FileOutputStream(temp);
+		ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+		try {
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				for (File file : listFiles(dir)) {
+					if (file.getName().endsWith(Book.QUILL_DATA_FILE_SUFFIX))
+						out.setLevel(Deflater.DEFAULT_COMPRESSION);
+					else
+						out.setLevel(Deflater.NO_COMPRESSION);
+					ZipEntry entry = new ZipEntry(dir.getName() + "/" + file.getName());
+					entry.setTime(file.lastModified());
+					out.putNextEntry(entry);
+					FileInputStream in = new FileInputStream(file);
+					try {
+						copy(in, out, buffer);
+					} finally {
+						in.close();
+					}
+					out.closeEntry();
+				}
+				out.finish();
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(dest))
+				throw new StorageIOException("Error renaming "+temp.toString());
+			renamed = true;
+		} finally {
+			if (!renamed)
+				temp.delete();
+		}
+	}
+	
+	/**
+	 * The files to archive, the book index first
+	 */
+	private static File[] listFiles(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new StorageIOException("Error reading directory "+dir.toString());
+		LinkedList<File> result = new LinkedList<File>();
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(Book.TEMP_FILE_SUFFIX) || name.equals(DirectoryManifest.MANIFEST_FILE))
+				continue;
+			if (name.equals(Book.INDEX_FILE))
+				result.addFirst(file);
+			else
+				result.add(file);
+		}
+		return result.toArray(new File[result.size()]);
+	}
+
+	/**
+	 * Open a compressed archive for random access
+	 * @param archive A compressed archive
+	 * @return The archive, which the caller must close
+	 * @throws IOException
+	 */
+	public static ZipFile openCompressed(File archive) throws IOException {
+		return new ZipFile(archive);
+	}
+	
+	/**
+	 * Find a file of the book in a compressed archive. Only the central
+	 * directory is searched, no data is read.
+	 * @param zip The archive
+	 * @param fileName The name of the file in the book directory
+	 * @return The input stream of the file
+	 * @throws IOException If there is no such file
+	 */
+	public static InputStream getInputStream(ZipFile zip, String fileName) throws IOException {
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			if (entry.getName().endsWith("/" + fileName))
+				return zip.getInputStream(entry);
+		}
+		throw new StorageIOException("Missing file in book archive: "+fileName);
+	}
+	
+	/**
+	 * Extract a book archive into the directory. Only plain files of a single
+	 * book are accepted.
+	 * @param archive A compressed or tar archive
+	 * @param dir An empty directory
+	 * @return The uuid of the book
+	 * @throws IOException
+	 */
+	public static UUID extract(File archive, File dir) throws IOException {
+		UUID uuid;
+		if (isCompressed(archive))
+			uuid = extractCompressed(archive, dir);
+		else
+			uuid = extractTar(archive, dir);
+		if (uuid == null)
+			throw new StorageIOException("No ID in book archive file.");
+		return uuid;
+	}
+	
+	private static UUID extractCompressed(File archive, File dir) throws IOException {
+		UUID uuid = null;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ZipFile zip = openCompressed(archive);
+		try {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				uuid = checkEntryUUID(entry.getName(), uuid);
+				String fileName = entryFileName(entry.getName());
+				if (entry.isDirectory() || fileName.length() == 0)
+					continue;
+				InputStream in = zip.getInputStream(entry);
+				FileOutputStream out = new FileOutputStream(new File(dir, fileName));
+				try {
+					copy(in, out, buffer);
+					out.getFD().sync();
+				} finally {
+					out.close();
+					in.close();
+				}
+			}
+		} finally {
+			zip.close();
+		}
+		return uuid;
+	}
+	
+	private static UUID extractTar(File archive, File dir) throws IOException {
+		UUID uuid = null;
+		FileInputStream fis = new FileInputStream(archive);
+		try {
+			FileChannel in = fis.getChannel();
+			byte[] header = new byte[TarConstants.HEADER_BLOCK];
+			while (readHeader(in, header)) {
+				TarEntry entry = new TarEntry(header);
+				// Log.d(TAG, "extract "+entry.getName());
+				uuid = checkEntryUUID(entry.getName(), uuid);
+				String fileName = entryFileName(entry.getName());
+				long size = entry.getSize();
+				if (entry.isDirectory() || fileName.length() == 0) {
+					in.position(in.position() + size + padding(size));
+					continue;
+				}
+				extractEntry(in, new File(dir, fileName), size);
+				in.position(in.position() + padding(size));
+			}
+		} finally {
+			fis.close();
+		}
+		return uuid;
+	}
+
+	/**
+	 * @param name The entry name
+	 * @param uuid The book uuid of the previous entries or null
+	 * @return The book uuid of the entry
+	 * @throws StorageIOException If the entry belongs to a different book
+	 */
+	private static UUID checkEntryUUID(String name, UUID uuid) throws StorageIOException {
+		int separator = name.indexOf('/');
+		if (separator < 0)
+			throw new StorageIOException("Incorrect book archive file");
+		UUID entryUUID;
+		try {
+			entryUUID = Storage.getInstance().getBookUUIDfromDirectoryName(name.substring(0, separator));
+		} catch (IndexOutOfBoundsException e) {
+			entryUUID = null;
+		} catch (IllegalArgumentException e) {
+			entryUUID = null;
+		}
+		if (entryUUID == null || (uuid != null && !uuid.equals(entryUUID)))
+			throw new StorageIOException("Incorrect book archive file");
+		return entryUUID;
+	}
+	
+	/**
+	 * @param name The entry name
+	 * @return The name of the file in the book directory, empty for the directory itself
+	 * @throws StorageIOException If the entry is not directly in the book directory
+	 */
+	private static String entryFileName(String name) throws StorageIOException {
+		String fileName = name.substring(name.indexOf('/') + 1);
+		if (fileName.endsWith("/"))
+			fileName = fileName.substring(0, fileName.length() - 1);
+		if (fileName.contains("/") || fileName.startsWith("."))
+			throw new StorageIOException("Incorrect book archive file");
+		return fileName;
+	}
+	
+	private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+		int count;
+		while ((count = in.read(buffer)) != -1)
+			out.write(buffer, 0, count);
+	}
+
+	private static void extractEntry(FileChannel in, File file, long size) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			FileChannel out = fos.getChannel();
+			long position = 0;
+			while (position < size) {
+				long count = out.transferFrom(in, position, size - position);
+				if (count <= 0)
+					throw new EOFException("Truncated book archive file");
+				position += count;
+			}
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * @return false at the end of the archive
+	 */
+	private static boolean readHeader(FileChannel in, byte[] header) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		while (buffer.hasRemaining())
+			if (in.read(buffer) < 0) {
+				if (buffer.position() == 0)
+					return false;
+				throw new EOFException("Truncated book archive file");
+			}
+		for (byte b : header)
+			if (b != 0)
+				return true;
+		return false;
+	}
+
+	private static long padding(long size) {
+		int extra = (int) (size % TarConstants.DATA_BLOCK);
+		return extra == 0 ? 0 : TarConstants.DATA_BLOCK - extra;
+	}
+}
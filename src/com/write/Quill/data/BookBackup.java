@@ -0,0 +1,233 @@
+package com.write.Quill.data;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.write.Quill.data.Storage.StorageIOException;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Export all notebooks to the backup directory
+ *
+ * The archives are written by a small worker pool in the background, the
+ * UI thread is never blocked. Notebooks that did not change since their
+ * backup file was written are skipped. The progress counters can be read
+ * from any thread while the backup is running, and the listener is
+ * notified in the UI thread after each notebook.
+ *
+ * Save the current book before starting the backup. If a notebook is saved
+ * while its archive is written, the backup file is marked as outdated so
+ * that the next backup writes it again.
+ *
+ * @author vbraun
+ *
+ */
+public class BookBackup {
+	private static final String TAG = "BookBackup";
+
+	private static final int MAX_THREADS = 4;
+
+	public interface OnBackupProgressListener {
+		/**
+		 * Called in the UI thread whenever a notebook is done
+		 * @param backup The running backup
+		 */
+		public void onBackupProgress(BookBackup backup);
+
+		/**
+		 * Called in the UI thread after all notebooks are done
+		 * @param backup The finished backup
+		 */
+		public void onBackupFinished(BookBackup backup);
+	}
+
+	private final Storage storage;
+	private final File dir;
+	private final String extension;
+
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger written = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicInteger remaining = new AtomicInteger();
+	private volatile long startTime = 0;
+	private volatile long endTime = 0;
+
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
+	private volatile OnBackupProgressListener listener = null;
+
+	/**
+	 * @param storage
+	 * @param dir The backup directory
+	 * @param extension The file name extension of the backup files
+	 */
+	public BookBackup(Storage storage, File dir, String extension) {
+		this.storage = storage;
+		this.dir = dir;
+		this.extension = extension;
+	}
+
+	/**
+	 * @param uuid
+	 * @return The backup file of the notebook
+	 */
+	public File getBackupFile(UUID uuid) {
+		return new File(dir, uuid.toString() + extension);
+	}
+
+	/**
+	 * Start backing up all notebooks and return immediately. Errors are
+	 * logged with {@link Storage#LogError(String, String)}.
+	 * @param listener The listener to notify about the progress, or null
+	 */
+	public void start(OnBackupProgressListener listener) {
+		this.listener = listener;
+		startTime = System.currentTimeMillis();
+		LinkedList<UUID> uuids = storage.listBookUUIDs();
+		total.set(uuids.size());
+		remaining.set(uuids.size());
+		if (uuids.isEmpty()) {
+			finish();
+			return;
+		}
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+		for (final UUID uuid : uuids)
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					backup(uuid);
+					if (remaining.decrementAndGet() == 0)
+						finish();
+					else
+						publishProgress();
+				}
+			});
+		// the worker threads exit once the queued notebooks are done
+		executor.shutdown();
+	}
+
+	/**
+	 * @return Whether all notebooks are done
+	 */
+	public boolean isFinished() {
+		return endTime != 0;
+	}
+
+	private void publishProgress() {
+		uiHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (listener != null)
+					listener.onBackupProgress(BookBackup.this);
+			}
+		});
+	}
+
+	private void finish() {
+		endTime = System.currentTimeMillis();
+		Log.d(TAG, "Backed up "+written+" of "+total+" notebooks, "+skipped+" unchanged, "
+				+failed+" failed, "+bytes+" bytes in "+getElapsedMillis()+"ms");
+		uiHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (listener != null)
+					listener.onBackupFinished(BookBackup.this);
+			}
+		});
+	}
+
+	private void backup(UUID uuid) {
+		File file = getBackupFile(uuid);
+		long modified = lastModified(uuid);
+		if (file.exists() && file.lastModified() >= modified) {
+			skipped.incrementAndGet();
+			return;
+		}
+		try {
+			storage.exportArchive(uuid, file);
+			bytes.addAndGet(file.length());
+			written.incrementAndGet();
+		} catch (StorageIOException e) {
+			failed.incrementAndGet();
+			storage.LogError(TAG, e.getLocalizedMessage());
+			return;
+		}
+		// the book was saved while it was archived, write it again next time
+		if (lastModified(uuid) != modified)
+			file.setLastModified(modified - 1);
+	}
+
+	/**
+	 * The book is changed by rewriting the index or appending to the journal
+	 * @param uuid
+	 * @return The last modification time of the notebook files
+	 */
+	private long lastModified(UUID uuid) {
+		File bookDir = storage.getBookDirectory(uuid);
+		long index = new File(bookDir, Book.INDEX_FILE).lastModified();
+		long journal = new File(bookDir, Book.JOURNAL_FILE).lastModified();
+		return Math.max(index, journal);
+	}
+
+	/**
+	 * @return The number of notebooks to back up
+	 */
+	public int getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * @return The number of notebooks that are backed up, skipped, or failed
+	 */
+	public int getDone() {
+		return written.get() + skipped.get() + failed.get();
+	}
+
+	public int getWritten() {
+		return written.get();
+	}
+
+	public int getSkipped() {
+		return skipped.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return The size of the archives written so far
+	 */
+	public long getBytesWritten() {
+		return bytes.get();
+	}
+
+	public long getElapsedMillis() {
+		if (startTime == 0)
+			return 0;
+		long end = (endTime == 0) ? System.currentTimeMillis() : endTime;
+		return end - startTime;
+	}
+
+	/**
+	 * @return The archive bytes written per second
+	 */
+	public float getThroughput() {
+		long millis = getElapsedMillis();
+		if (millis == 0)
+			return 0;
+		return 1000f * getBytesWritten() / millis;
+	}
+}
@@ -0,0 +1,346 @@
+package com.write.Quill.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import name.vbraun.view.write.MappedDataInputStream;
+import name.vbraun.view.write.Page;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * The title, times, page count, and cover of every notebook
+ *
+ * The bookshelf needs these for all notebooks, but loading each book just
+ * to show them takes time proportional to the number of books. Instead,
+ * they are kept in a catalogue file and updated whenever a book is saved.
+ * An entry is only read from the book again if the book files changed
+ * otherwise, for example by the journal or an import.
+ *
+ * The covers are rendered from the first page on demand and saved as
+ * image files next to the catalogue. A cover is deleted when the first
+ * page changes.
+ *
+ * @author vbraun
+ *
+ */
+public class BookCatalogue {
+	private static final String TAG = "BookCatalogue";
+
+	protected static final String CATALOGUE_DIRECTORY = "bookshelf";
+	private static final String CATALOGUE_FILE = "catalogue"+Book.QUILL_DATA_FILE_SUFFIX;
+	private static final String COVER_FILE_SUFFIX = ".png";
+
+	/**
+	 * A catalogue entry, which never changes. Updating a book replaces its entry.
+	 */
+	public static class Entry {
+		protected final UUID uuid;
+		protected final String title;
+		protected final long ctime;
+		protected final long mtime;
+		protected final int pageCount;
+		// the last modification time of the book files that the entry is valid for
+		protected final long modified;
+		// the first page and its modification stamp that the cover is valid for
+		protected final UUID coverPage;
+		protected final long coverStamp;
+		// the cover, once it has been loaded
+		private volatile Bitmap cover = null;
+
+		protected Entry(Book book, long modified) {
+			uuid = book.getUUID();
+			title = book.title;
+			ctime = book.ctime.toMillis(false);
+			mtime = book.mtime.toMillis(false);
+			pageCount = book.pagesSize();
+			this.modified = modified;
+			Page page = book.getPage(0);
+			coverPage = page.getUUID();
+			coverStamp = page.getModificationStamp();
+		}
+
+		private Entry(DataInputStream in) throws IOException {
+			uuid = UUID.fromString(in.readUTF());
+			title = in.readUTF();
+			ctime = in.readLong();
+			mtime = in.readLong();
+			pageCount = in.readInt();
+			modified = in.readLong();
+			coverPage = UUID.fromString(in.readUTF());
+			coverStamp = in.readLong();
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeUTF(uuid.toString());
+			out.writeUTF(title);
+			out.writeLong(ctime);
+			out.writeLong(mtime);
+			out.writeInt(pageCount);
+			out.writeLong(modified);
+			out.writeUTF(coverPage.toString());
+			out.writeLong(coverStamp);
+		}
+
+		private boolean sameCover(Entry other) {
+			return other != null && coverPage.equals(other.coverPage) && coverStamp == other.coverStamp;
+		}
+
+		public UUID getUUID() {
+			return uuid;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public long getCreationTime() {
+			return ctime;
+		}
+
+		public long getModificationTime() {
+			return mtime;
+		}
+
+		public int getPageCount() {
+			return pageCount;
+		}
+
+		/**
+		 * @return The cover if it has been loaded, or null
+		 */
+		public Bitmap getCachedCover() {
+			return cover;
+		}
+	}
+
+	private final Storage storage;
+	private final File dir;
+	private final File file;
+	private final HashMap<UUID, Entry> entries = new HashMap<UUID, Entry>();
+
+	protected BookCatalogue(Storage storage) {
+		this.storage = storage;
+		dir = new File(storage.getFilesDir(), CATALOGUE_DIRECTORY);
+		dir.mkdirs();
+		file = new File(dir, CATALOGUE_FILE);
+		read();
+	}
+
+	/**
+	 * Return the entry of a book, and read it from the book if it is missing
+	 * or outdated. Call {@link #save()} afterwards.
+	 * @param uuid
+	 * @return The catalogue entry
+	 */
+	public synchronized Entry get(UUID uuid) {
+		Entry entry = entries.get(uuid);
+		if (entry != null && entry.modified == lastModified(uuid))
+			return entry;
+		return refresh(uuid);
+	}
+
+	/**
+	 * Read the entry of a book from its files, which takes as long as
+	 * loading the first page. Call {@link #save()} afterwards.
+	 * @param uuid
+	 * @return The new catalogue entry
+	 */
+	public synchronized Entry refresh(UUID uuid) {
+		Log.d(TAG, "Reading catalogue entry of "+uuid);
+		long modified = lastModified(uuid);
+		return put(new Entry(new Book(storage, uuid, 1), modified));
+	}
+
+	/**
+	 * Update the entry of a book that was just saved and write the catalogue
+	 * @param book
+	 * @return The new catalogue entry
+	 */
+	public synchronized Entry update(Book book) {
+		Entry entry = put(new Entry(book, lastModified(book.getUUID())));
+		save();
+		return entry;
+	}
+
+	private Entry put(Entry entry) {
+		Entry old = entries.put(entry.uuid, entry);
+		if (entry.sameCover(old))
+			entry.cover = old.cover;
+		else
+			getCoverFile(entry.uuid).delete();
+		return entry;
+	}
+
+	/**
+	 * Remove the entry of a deleted book and write the catalogue
+	 * @param uuid
+	 */
+	public synchronized void remove(UUID uuid) {
+		entries.remove(uuid);
+		getCoverFile(uuid).delete();
+		save();
+	}
+
+	/**
+	 * Forget the books that are not in the collection
+	 * @param uuids The uuids of all books
+	 */
+	public synchronized void retainAll(Collection<UUID> uuids) {
+		Iterator<UUID> iter = entries.keySet().iterator();
+		while (iter.hasNext()) {
+			UUID uuid = iter.next();
+			if (uuids.contains(uuid)) continue;
+			iter.remove();
+			getCoverFile(uuid).delete();
+		}
+	}
+
+	/**
+	 * The book is changed by rewriting the index or appending to the journal
+	 * @param uuid
+	 * @return The last modification time of the book files
+	 */
+	private long lastModified(UUID uuid) {
+		File bookDir = storage.getBookDirectory(uuid);
+		long index = new File(bookDir, Book.INDEX_FILE).lastModified();
+		long journal = new File(bookDir, Book.JOURNAL_FILE).lastModified();
+		return Math.max(index, journal);
+	}
+
+	private File getCoverFile(UUID uuid) {
+		return new File(dir, uuid.toString() + COVER_FILE_SUFFIX);
+	}
+
+	/**
+	 * Load the cover from the cover file, or render it from the first page
+	 * of the book. This takes a while, so call it in a background thread.
+	 * @param entry The catalogue entry
+	 * @param width The maximal cover width
+	 * @param height The maximal cover height
+	 * @return The cover
+	 */
+	public Bitmap loadCover(Entry entry, int width, int height) {
+		Bitmap cover = entry.cover;
+		if (fits(cover, width, height))
+			return cover;
+		File coverFile = getCoverFile(entry.uuid);
+		cover = BitmapFactory.decodeFile(coverFile.getPath());
+		if (!fits(cover, width, height)) {
+			Book book = new Book(storage, entry.uuid, 1);
+			cover = book.getPage(0).renderBitmap(width, height, true);
+			synchronized (this) {
+				// do not save the cover if the book changed in the meantime
+				if (entries.get(entry.uuid) == entry)
+					writeCover(coverFile, cover);
+			}
+		}
+		entry.cover = cover;
+		return cover;
+	}
+
+	/**
+	 * @return Whether the bitmap has the size of a page rendered into the box
+	 */
+	private static boolean fits(Bitmap bitmap, int width, int height) {
+		if (bitmap == null)
+			return false;
+		return bitmap.getWidth() <= width && bitmap.getHeight() <= height &&
+				(bitmap.getWidth() == width || bitmap.getHeight() == height);
+	}
+
+	private void writeCover(File coverFile, Bitmap cover) {
+		File temp = new File(dir, coverFile.getName() + Book.TEMP_FILE_SUFFIX);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				cover.compress(Bitmap.CompressFormat.PNG, 100, out);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(coverFile))
+				throw new IOException("Unable to rename "+temp.getName());
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing cover: "+e.getMessage());
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Write the catalogue file
+	 */
+	public synchronized void save() {
+		File temp = new File(dir, CATALOGUE_FILE + Book.TEMP_FILE_SUFFIX);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(1);
+			out.writeInt(entries.size());
+			for (Entry entry : entries.values())
+				entry.write(out);
+			out.close();
+			byte[] data = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			FileOutputStream fos = new FileOutputStream(temp);
+			try {
+				fos.write(data);
+				new DataOutputStream(fos).writeLong(crc.getValue());
+			} finally {
+				fos.close();
+			}
+			if (!temp.renameTo(file))
+				throw new IOException("Unable to rename "+temp.getName());
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing the catalogue: "+e.getMessage());
+			temp.delete();
+		}
+	}
+
+	private void read() {
+		if (!file.exists())
+			return;
+		DataInputStream in = null;
+		try {
+			in = MappedDataInputStream.map(file);
+			int length = in.available() - 8;
+			if (length < 0)
+				return;
+			byte[] data = new byte[length];
+			in.readFully(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if (in.readLong() != crc.getValue()) {
+				Log.e(TAG, "Catalogue checksum mismatch");
+				return;
+			}
+			DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(data));
+			if (dataIn.readInt() != 1)
+				return;
+			int n = dataIn.readInt();
+			for (int i = 0; i < n; i++) {
+				Entry entry = new Entry(dataIn);
+				entries.put(entry.uuid, entry);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading the catalogue: "+e.getMessage());
+			entries.clear();
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) {}
+		}
+	}
+}
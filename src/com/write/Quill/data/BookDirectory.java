@@ -19,60 +19,64 @@ public class BookDirectory extends DirectoryBase {
 		super(storage, Storage.NOTEBOOK_DIRECTORY_PREFIX, uuid);
 	}
 	
-	private FilenameFilter getPrefixFilter(final String prefix) {
-		return new FilenameFilter() {
-		    public boolean accept(File directory, String name) {
-		        return name.startsWith(prefix);
-		    }};
+	/**
+	 * The file names are taken from the directory manifest, which only scans
+	 * the directory if it has changed since the last scan.
+	 * @return The manifest of this book directory
+	 */
+	protected DirectoryManifest getManifest() {
+		return DirectoryManifest.forDirectory(this);
 	}
 	
 	protected LinkedList<UUID> listPages() {
-		FilenameFilter filter = getPrefixFilter(Book.PAGE_FILE_PREFIX); 
-		File[] entries = listFiles(filter);
 		LinkedList<UUID> uuids = new LinkedList<UUID>();
-		if (entries == null) return uuids;
-		for (File page : entries) {
-			String path = page.getAbsolutePath();
-			int pos = path.lastIndexOf(Book.PAGE_FILE_PREFIX);
-			pos += Book.PAGE_FILE_PREFIX.length();
+		for (String name : getManifest().list()) {
+			if (!name.startsWith(Book.PAGE_FILE_PREFIX)) continue;
+			if (name.endsWith(Book.TEMP_FILE_SUFFIX)) continue;
+			int pos = Book.PAGE_FILE_PREFIX.length();
 			try {
-				UUID uuid = UUID.fromString(path.substring(pos, pos+36));
+				UUID uuid = UUID.fromString(name.substring(pos, pos+36));
 				Log.d(TAG, "Found page: "+uuid);
 				uuids.add(uuid);
 			} catch (StringIndexOutOfBoundsException e) {
-				page.delete();
-				Log.e(TAG, "Malformed file name: "+uuid);
+				new File(this, name).delete();
+				Log.e(TAG, "Malformed file name: "+name);
 			}
 		}
 		return uuids;
 	}
 	
 	/**
-	 * List everything that is not Page and index data
+	 * List everything that is not Page, index, page table, blob table, journal, or temporary data
+	 * @return The file names of the blobs
 	 */
-	protected LinkedList<UUID> listBlobs() {
-		FilenameFilter filter = new FilenameFilter() {
-		    public boolean accept(File directory, String name) {
-		        return !name.startsWith(Book.PAGE_FILE_PREFIX) && 
-		        		!name.startsWith(Book.INDEX_FILE);
-		    }}; 
-		File[] entries = listFiles(filter);
-		LinkedList<UUID> uuids = new LinkedList<UUID>();
-		if (entries == null) return uuids;
-		for (File blob : entries) {
-			String path = blob.getName();
-			try {
-				UUID uuid = UUID.fromString(path.substring(0, 36));
-				Log.d(TAG, "Found blob: "+uuid);
-				uuids.add(uuid);
-			} catch (StringIndexOutOfBoundsException e) {
-				blob.delete();
-				Log.e(TAG, "Malformed file name: "+uuid);
-			}
+	protected LinkedList<String> listBlobs() {
+		LinkedList<String> names = new LinkedList<String>();
+		for (String name : getManifest().list()) {
+			if (name.startsWith(Book.PAGE_FILE_PREFIX) || 
+					name.startsWith(Book.INDEX_FILE) ||
+					name.startsWith(Book.PAGE_TABLE_FILE) ||
+					name.startsWith(Book.BLOB_TABLE_FILE) ||
+					name.startsWith(Book.JOURNAL_FILE) ||
+					name.endsWith(Book.TEMP_FILE_SUFFIX))
+				continue;
+			Log.d(TAG, "Found blob: "+name);
+			names.add(name);
 		}
-		return uuids;
+		return names;
 	}
 
+	/**
+	 * Delete the temporary files left over from an interrupted save
+	 */
+	protected void deleteTemporaryFiles() {
+		for (String name : getManifest().list()) {
+			if (!name.endsWith(Book.TEMP_FILE_SUFFIX)) continue;
+			Log.d(TAG, "Deleting temporary file "+name);
+			new File(this, name).delete();
+		}
+	}
+	
 	/**
 	 * Return the file with given UUID
 	 * @param uuid
@@ -0,0 +1,116 @@
+package com.write.Quill.data;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import com.write.Quill.data.Book.BookSaveException;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Write book snapshots to the internal storage in a background thread
+ *
+ * Snapshots are written in the order in which they were requested. If a
+ * snapshot of the same book is still waiting, the new one is merged into it
+ * so repeated save requests only cost one write.
+ *
+ * @author vbraun
+ *
+ */
+public class BookSaver {
+	private static final String TAG = "BookSaver";
+
+	private static BookSaver instance = null;
+
+	public static synchronized BookSaver getInstance() {
+		if (instance == null)
+			instance = new BookSaver();
+		return instance;
+	}
+
+	private final Handler saveHandler;
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+	// snapshots that are waiting to be written, by book uuid
+	private final HashMap<UUID, BookSnapshot> queued = new HashMap<UUID, BookSnapshot>();
+
+	private BookSaver() {
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		saveHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Write the snapshot in the background thread
+	 * @param snapshot
+	 */
+	public void save(BookSnapshot snapshot) {
+		final UUID uuid = snapshot.getUUID();
+		synchronized (queued) {
+			BookSnapshot waiting = queued.get(uuid);
+			if (waiting != null) {
+				Log.d(TAG, "Coalescing save of "+uuid);
+				waiting.merge(snapshot);
+				return;
+			}
+			queued.put(uuid, snapshot);
+		}
+		saveHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				write(uuid);
+			}
+		});
+	}
+
+	private void write(UUID uuid) {
+		BookSnapshot snapshot;
+		synchronized (queued) {
+			snapshot = queued.remove(uuid);
+		}
+		String error = null;
+		try {
+			snapshot.write();
+		} catch (BookSaveException e) {
+			error = e.getLocalizedMessage();
+		} catch (IOException e) {
+			error = e.getLocalizedMessage();
+		}
+		if (error != null) {
+			final String message = error;
+			uiHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					Storage.getInstance().LogError(TAG, message);
+				}
+			});
+		}
+		if (snapshot.getOnSaved() != null)
+			uiHandler.post(snapshot.getOnSaved());
+	}
+
+	/**
+	 * Block until all snapshots that were requested so far have been written.
+	 * Must not be called from the background thread.
+	 */
+	public void waitUntilSaved() {
+		final CountDownLatch done = new CountDownLatch(1);
+		saveHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Log.e(TAG, "Interrupted while waiting for the save thread");
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package com.write.Quill.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+
+import com.write.Quill.data.Book.BookSaveException;
+
+import name.vbraun.view.write.MappedDataInputStream;
+import name.vbraun.view.write.Page;
+
+import android.util.Log;
+
+/**
+ * The serialized state of a book that has to be written to the internal storage
+ *
+ * The snapshot is taken in the UI thread, and contains the index and the
+ * modified pages. The sample points of the pages are copied, but only
+ * compressed when the snapshot is written. Writing it to the book directory
+ * does not touch the Book object, so it can be done by the {@link BookSaver}
+ * in a background thread.
+ * 
+ * A snapshot either saves the book in full, which replaces the journal, or
+ * only appends records with page changes to the journal. Every file is first
+ * written to a temporary file and synced, and then renamed. So an interrupted
+ * save leaves the previous version of the file. 
+ * 
+ * Image files are deleted by mark and sweep: the blob table lists the
+ * image files that were in use at the last full save. Those that are
+ * no longer in use, and those that were created and dropped again 
+ * since then, are deleted without listing the book directory.
+ *
+ * @author vbraun
+ *
+ */
+public class BookSnapshot {
+	private static final String TAG = "BookSnapshot";
+
+	private final UUID uuid;
+	private final BookDirectory dir;
+	private byte[] index;
+
+	// the modified pages
+	private final LinkedHashMap<UUID, Page.Encoding> pages = new LinkedHashMap<UUID, Page.Encoding>();
+
+	// the page table entries, in page order
+	private LinkedHashMap<UUID, byte[]> headers = new LinkedHashMap<UUID, byte[]>();
+
+	// all pages and blobs that are still in use
+	private LinkedList<UUID> pageUUIDs = new LinkedList<UUID>();
+	private HashSet<String> blobsInUse = new HashSet<String>();
+	
+	// blobs that were created since the last full save
+	private final HashSet<String> createdBlobs = new HashSet<String>();
+
+	// whether the book is saved in full
+	private boolean compact;
+
+	// records to be appended to the journal
+	private final LinkedList<byte[]> journal = new LinkedList<byte[]>();
+
+	private Runnable onSaved = null;
+
+	/**
+	 * @param uuid
+	 * @param dir
+	 * @param compact Whether to save the book in full (otherwise, only append to the journal)
+	 */
+	protected BookSnapshot(UUID uuid, BookDirectory dir, boolean compact) {
+		this.uuid = uuid;
+		this.dir = dir;
+		this.compact = compact;
+	}
+
+	public UUID getUUID() {
+		return uuid;
+	}
+
+	protected void setIndex(byte[] index) {
+		this.index = index;
+	}
+
+	protected void addPage(UUID page, Page.Encoding data) {
+		pages.put(page, data);
+	}
+
+	protected void addHeader(UUID page, byte[] header) {
+		headers.put(page, header);
+	}
+
+	protected void addInUse(UUID page, Iterable<String> blobs) {
+		pageUUIDs.add(page);
+		for (String blob : blobs)
+			blobsInUse.add(blob);
+	}
+	
+	protected void addCreatedBlobs(Iterable<String> blobs) {
+		for (String blob : blobs)
+			createdBlobs.add(blob);
+	}
+
+	protected void addJournalRecord(byte[] record) {
+		journal.add(record);
+	}
+
+	/**
+	 * @return Whether there is nothing to write
+	 */
+	public boolean isEmpty() {
+		return !compact && journal.isEmpty();
+	}
+
+	/**
+	 * @param onSaved To be run in the UI thread after the snapshot has been written
+	 */
+	public void setOnSaved(Runnable onSaved) {
+		this.onSaved = onSaved;
+	}
+
+	public Runnable getOnSaved() {
+		return onSaved;
+	}
+
+	/**
+	 * Combine with a newer snapshot of the same book, so that both can be written at once
+	 * @param newer A snapshot that was taken after this one
+	 */
+	protected void merge(BookSnapshot newer) {
+		if (newer.compact) {
+			// the journal records are contained in the newer pages
+			compact = true;
+			journal.clear();
+			index = newer.index;
+			pages.putAll(newer.pages);
+			// pages deleted in the meantime must not be written again
+			pages.keySet().retainAll(new HashSet<UUID>(newer.pageUUIDs));
+			headers = newer.headers;
+			pageUUIDs = newer.pageUUIDs;
+			blobsInUse = newer.blobsInUse;
+		}
+		createdBlobs.addAll(newer.createdBlobs);
+		journal.addAll(newer.journal);
+		if (newer.onSaved != null)
+			onSaved = newer.onSaved;
+	}
+
+	/**
+	 * Write the snapshot to the book directory and delete unused files
+	 * @throws BookSaveException
+	 * @throws IOException
+	 */
+	protected void write() throws BookSaveException, IOException {
+		if (!dir.isDirectory()) {
+			if (!dir.mkdir())
+				throw new BookSaveException("Error creating directory "+dir.toString());
+			DirectoryManifest.invalidate(dir.getParentFile());
+		}
+		if (compact)
+			writeAll();
+		if (!journal.isEmpty())
+			appendJournal();
+	}
+
+	/**
+	 * The directory is listed before any file is written, so that all 
+	 * listings are taken from the same scan of the directory manifest.
+	 */
+	private void writeAll() throws IOException {
+		dir.deleteTemporaryFiles();
+		LinkedList<UUID> pageUUIDsInDir = dir.listPages();
+		pageUUIDsInDir.removeAll(pageUUIDs);
+		HashSet<String> unusedBlobs = readBlobTable(new File(dir, Book.BLOB_TABLE_FILE));
+		if (unusedBlobs == null)
+			unusedBlobs = new HashSet<String>(dir.listBlobs());
+
+		writeFile(new File(dir, Book.INDEX_FILE), index);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dataOut = new DataOutputStream(bytes);
+		for (Map.Entry<UUID, Page.Encoding> page : pages.entrySet()) {
+			Log.d(TAG, "Saving book page "+page.getKey());
+			bytes.reset();
+			page.getValue().writeTo(dataOut);
+			writeFile(Book.getPageFile(dir, page.getKey()), bytes.toByteArray());
+		}
+		writePageTable();
+
+		for (UUID unused: pageUUIDsInDir) {
+			File file = Book.getPageFile(dir, unused);
+			Log.d(TAG, "Deleteing unusued page file: "+file.toString());
+			file.delete();
+		}
+		deleteUnusedBlobs(unusedBlobs);
+		new File(dir, Book.JOURNAL_FILE).delete();
+	}
+	
+	/**
+	 * Delete the blobs that are no longer in use, then write the blobs in 
+	 * use to the blob table. Books without blob table are checked against 
+	 * the directory listing once.
+	 * @param unused The blobs in the previous blob table, or in the directory
+	 */
+	private void deleteUnusedBlobs(HashSet<String> unused) throws IOException {
+		File table = new File(dir, Book.BLOB_TABLE_FILE);
+		unused.addAll(createdBlobs);
+		unused.removeAll(blobsInUse);
+		for (String blob : unused) {
+			Log.d(TAG, "Deleteing unusued blob file: "+blob);
+			new File(dir, blob).delete();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(2);
+		out.writeInt(blobsInUse.size());
+		for (String blob : blobsInUse)
+			out.writeUTF(blob);
+		out.close();
+		writeFile(table, bytes.toByteArray());
+	}
+	
+	/**
+	 * @return The blobs in the table or null if there is no valid blob table
+	 */
+	private HashSet<String> readBlobTable(File table) {
+		if (!table.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = MappedDataInputStream.map(table);
+			int version = in.readInt();
+			if (version != 1 && version != 2)
+				return null;
+			int n = in.readInt();
+			HashSet<String> blobs = new HashSet<String>();
+			for (int i=0; i<n; i++) {
+				blobs.add(in.readUTF());
+				if (version == 1)
+					in.readInt(); // unused reference count
+			}
+			return blobs;
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading the blob table: "+e.getMessage());
+			return null;
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Append the records, see {@link JournalRecord}. A record that was only 
+	 * partially written is ignored when the journal is replayed.
+	 */
+	private void appendJournal() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (byte[] record : journal)
+			JournalRecord.write(out, record);
+		out.close();
+		File file = new File(dir, Book.JOURNAL_FILE);
+		Log.d(TAG, "Appending "+journal.size()+" records to the journal");
+		FileOutputStream fos = new FileOutputStream(file, true);
+		try {
+			fos.write(bytes.toByteArray());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * The page table needs the size and modification time of the page
+	 * files, so it can only be assembled after they are written.
+	 */
+	private void writePageTable() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(1);
+		out.writeInt(headers.size());
+		for (Map.Entry<UUID, byte[]> header : headers.entrySet()) {
+			File file = Book.getPageFile(dir, header.getKey());
+			out.writeLong(file.lastModified());
+			out.writeLong(file.length());
+			out.writeUTF(header.getKey().toString());
+			out.write(header.getValue());
+		}
+		out.close();
+		writeFile(new File(dir, Book.PAGE_TABLE_FILE), bytes.toByteArray());
+	}
+
+	/**
+	 * Atomically replace the file
+	 */
+	private void writeFile(File file, byte[] data) throws IOException {
+		File temp = new File(file.getPath() + Book.TEMP_FILE_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			fos.write(data);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Error renaming "+temp.toString());
+	}
+}
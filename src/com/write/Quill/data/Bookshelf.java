@@ -22,6 +22,7 @@ import com.write.Quill.UndoManager;
 import com.write.Quill.data.Book.BookIOException;
 import com.write.Quill.data.Book.BookLoadException;
 import com.write.Quill.data.Book.BookSaveException;
+import com.write.Quill.data.BookBackup.OnBackupProgressListener;
 import com.write.Quill.data.Storage.StorageIOException;
 
 import junit.framework.Assert;
@@ -50,7 +51,8 @@ public class Bookshelf {
 	
 	
 	/**
-	 * The book preview is a truncated version of the book where only the first page is loaded.
+	 * The book preview shows the catalogue entry of a book. The cover is 
+	 * only loaded on demand.
 	 * 
 	 * @author vbraun
 	 *
@@ -58,31 +60,63 @@ public class Bookshelf {
 	public class BookPreview {
 		@SuppressWarnings("unused")
 		private static final String TAG = "BookPreview";
-		private Book preview;
-		private UUID uuid;
-		private BookPreview(UUID uuid) {
-			this.uuid = uuid;
-			preview = new Book(storage, uuid, 1);
+		private BookCatalogue.Entry entry;
+		private final UUID uuid;
+		// a book that is not in the catalogue, for example in a backup file
+		private final Book preview;
+		private BookPreview(BookCatalogue.Entry entry) {
+			this.uuid = entry.getUUID();
+			this.entry = entry;
+			this.preview = null;
 		}
-		public UUID getUUID() { return preview.uuid; }
-		public String getTitle() { return preview.title; }
+		private BookPreview(Book preview) {
+			this.uuid = preview.uuid;
+			this.entry = new BookCatalogue.Entry(preview, 0);
+			this.preview = preview;
+		}
+		public UUID getUUID() { return uuid; }
+		public String getTitle() { return entry.getTitle(); }
 		public String getSummary() {
 			String s = "Created on ";
-			s += storage.formatDateTime(preview.ctime.toMillis(false)) + "\n";
+			s += storage.formatDateTime(entry.getCreationTime()) + "\n";
 			s += "Last modified on ";
-			s += storage.formatDateTime(preview.mtime.toMillis(false)) + "\n";
+			s += storage.formatDateTime(entry.getModificationTime()) + "\n";
 			return s;
 		}
 		public Time getLastModifiedTime() {
-			return preview.mtime;
+			Time mtime = new Time();
+			mtime.set(entry.getModificationTime());
+			return mtime;
+		}
+		/**
+		 * @return The cover if it is already loaded, or null
+		 */
+		public Bitmap getCachedThumbnail() {
+			return entry.getCachedCover();
 		}
+		/**
+		 * Load or render the cover. This can take a while, so call it in a 
+		 * background thread unless {@link #getCachedThumbnail()} is not null.
+		 * @param width The maximal width
+		 * @param height The maximal height
+		 * @return The cover
+		 */
 		public Bitmap getThumbnail(int width, int height) {
-    		return preview.currentPage().renderBitmap(width, height, true);
+			if (preview != null)
+				return preview.getPage(0).renderBitmap(width, height, true);
+			return catalogue.loadCover(entry, width, height);
 		}
 		public void reload() {
-			preview = new Book(storage, uuid, 1);
+			entry = catalogue.refresh(uuid);
+			catalogue.save();
+		}
+		private void update(Book book) {
+			entry = catalogue.update(book);
+		}
+		public void deleteFromStorage() { 
+			storage.getBookDirectory(uuid).deleteAll(); 
+			catalogue.remove(uuid);
 		}
-		public void deleteFromStorage() { storage.getBookDirectory(uuid).deleteAll(); }
 	}
 	
 	public static class BookPreviewComparator implements Comparator<BookPreview> {
@@ -118,14 +152,18 @@ public class Bookshelf {
 	private static Book currentBook;
 	private static Bookshelf instance;
 	private Storage storage;
+	private BookCatalogue catalogue;
 	
 	private Bookshelf(Storage storage) {
 		this.storage = storage;
+		catalogue = new BookCatalogue(storage);
 		LinkedList<UUID> bookUUIDs = storage.listBookUUIDs();
+		catalogue.retainAll(bookUUIDs);
 		for (UUID uuid : bookUUIDs) {
-			BookPreview notebook = new BookPreview(uuid);
+			BookPreview notebook = new BookPreview(catalogue.get(uuid));
 			data.add(notebook);
 		}
+		catalogue.save();
 		if (!data.isEmpty()) {
 			UUID uuid = storage.loadCurrentBookUUID();
 			if (uuid == null)
@@ -200,12 +238,22 @@ public class Bookshelf {
 		return data.size();
 	}
 	
+	/**
+	 * Reload the preview after the book has been saved in the background, 
+	 * unless the bookshelf has been finalized in the meantime 
+	 * @param book
+	 */
+	protected static void previewChanged(Book book) {
+		if (instance != null)
+			instance.reloadPreview(book);
+	}
+	
 	protected void reloadPreview(Book book) {
 		BookPreview preview = getPreview(book);
 		if (preview != null) 
-			preview.reload();
+			preview.update(book);
 		else {
-			BookPreview nb = new BookPreview(book.getUUID());
+			BookPreview nb = new BookPreview(catalogue.update(book));
 			data.add(nb);		
 		}
 	}
@@ -254,7 +302,8 @@ public class Bookshelf {
 		if (nb != null)
 			nb.reload();
 		else {
-			nb = new BookPreview(uuid);
+			nb = new BookPreview(catalogue.refresh(uuid));
+			catalogue.save();
 			data.add(nb);
 		}
 		setCurrentBook(nb, false);
@@ -275,20 +324,18 @@ public class Bookshelf {
 		if (isCurrentBook)
 			currentBook = null;
 	
-		File bookDir = storage.getBookDirectory(uuid);
-		bookDir.mkdir();
-		for (File src : dir.listFiles()) {
-			File dst = new File(bookDir, src.getName());
-			dst.delete();
-			src.renameTo(dst);
+		try {
+			storage.installBookDirectory(dir, uuid);
+		} catch (StorageIOException e) {
+			storage.LogError(TAG, e.getMessage());
 		}
-		dir.delete();
 		
 		nb = getPreview(uuid);
 		if (nb != null)
 			nb.reload();
 		else {
-			nb = new BookPreview(uuid);
+			nb = new BookPreview(catalogue.refresh(uuid));
+			catalogue.save();
 			data.add(nb);
 		}
 		if (isCurrentBook)
@@ -296,6 +343,26 @@ public class Bookshelf {
 		Assert.assertTrue(data.contains(nb));
 	}
 
+	/**
+	 * Preview a backup file without importing it. This reads only the 
+	 * index and the first page from a compressed archive.
+	 * @param file A backup file
+	 * @return The preview, which is not part of the bookshelf, or null if the
+	 *         backup is not a compressed archive
+	 */
+	public BookPreview previewBackup(File file) {
+		try {
+			if (!BookArchive.isCompressed(file))
+				return null;
+			return new BookPreview(Book.loadArchivePreview(file, 1));
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot preview backup: "+e.getMessage());
+		} catch (BookLoadException e) {
+			Log.e(TAG, "Cannot preview backup: "+e.getMessage());
+		}
+		return null;
+	}
+	
 	public void exportCurrentBook(File file) throws BookSaveException {
 		exportBook(currentBook.getUUID(), file);
 	}
@@ -334,32 +401,42 @@ public class Bookshelf {
 	
 	
 	/**
-	 * Backup all notebooks
-	 * @param dir
+	 * Backup all notebooks in the background
+	 * @param listener The listener to notify in the UI thread, or null
+	 * @return The running backup, or null if backups are disabled
 	 */
-	public void backup() {
+	public BookBackup backup(OnBackupProgressListener listener) {
 		File dir = storage.getBackupDir();
-		if (dir == null) return;  // backups are disabled by user request
-		backup(dir);
+		if (dir == null) return null;  // backups are disabled by user request
+		return backup(dir, listener);
 	}
 		
 	/**
-	 * Backup all notebooks. Does not overwrite backup files that have the same or newer modification time.
+	 * Backup all notebooks in the background. Does not overwrite backup files 
+	 * that have the same or newer modification time. The description file is 
+	 * written when the backup is finished.
 	 * @param dir The directory to save the backups in
+	 * @param listener The listener to notify in the UI thread, or null
+	 * @return The running backup with its counters
 	 */
-	public void backup(File dir) {
-		for (BookPreview nb : getBookPreviewList()) {
-			UUID uuid = nb.getUUID();
-			File file = new File(dir, uuid.toString() + QUILL_EXTENSION);
-			File index = new File(storage.getBookDirectory(uuid), Book.INDEX_FILE);
-			if (file.exists() && file.lastModified() >= index.lastModified()) continue;
-			try {
-				exportBook(uuid, file);
-			} catch (BookSaveException e) {
-				storage.LogError(TAG, e.getLocalizedMessage());
+	public BookBackup backup(final File dir, final OnBackupProgressListener listener) {
+		if (currentBook != null)
+			currentBook.save();
+		BookBackup backup = new BookBackup(storage, dir, QUILL_EXTENSION);
+		backup.start(new OnBackupProgressListener() {
+			@Override
+			public void onBackupProgress(BookBackup backup) {
+				if (listener != null)
+					listener.onBackupProgress(backup);
 			}
-			backupDescription(dir);
-		}
+			@Override
+			public void onBackupFinished(BookBackup backup) {
+				backupDescription(dir);
+				if (listener != null)
+					listener.onBackupFinished(backup);
+			}
+		});
+		return backup;
 	}
 	
 	/**
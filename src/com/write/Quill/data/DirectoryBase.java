@@ -33,7 +33,9 @@ public class DirectoryBase extends File {
 			File file = new File(this, child);
 			file.delete();
 		}
+		DirectoryManifest.invalidate(this);
 		boolean rc = delete();
+		DirectoryManifest.invalidate(getParentFile());
 		if (!rc) 
 			storage.LogError(TAG, "Unable to delete directory "+toString());		
 	}
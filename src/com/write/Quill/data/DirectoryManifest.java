@@ -0,0 +1,212 @@
+package com.write.Quill.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import name.vbraun.view.write.MappedDataInputStream;
+
+import android.util.Log;
+
+/**
+ * The list of file names in a directory, without scanning it every time
+ *
+ * The names are kept in memory and in a small manifest file inside the
+ * directory, together with the modification time of the directory. Adding,
+ * removing, or renaming a file changes the modification time, so the list
+ * is still valid if the time did not change. Otherwise the directory is
+ * scanned again.
+ *
+ * The modification time has a resolution of one second on older Android
+ * versions, so a change right after the scan might not change it. A list
+ * that was scanned less than a second after the last change is therefore
+ * not trusted, and the directory is scanned again the next time. Since any
+ * code may change the directory, for example by renaming an image file
+ * into it, the list is never updated without a scan.
+ *
+ * The manifest file is rewritten in place, which does not change the
+ * modification time of the directory.
+ *
+ * @author vbraun
+ *
+ */
+public class DirectoryManifest {
+	private static final String TAG = "DirectoryManifest";
+
+	protected static final String MANIFEST_FILE = "manifest.quill_data";
+	
+	// the coarsest resolution of the file modification times, in milliseconds
+	private static final long TIMESTAMP_RESOLUTION = 1000;
+
+	private static final HashMap<File, DirectoryManifest> manifests = new HashMap<File, DirectoryManifest>();
+
+	/**
+	 * @param dir
+	 * @return The manifest of the directory, shared by all threads
+	 */
+	public static DirectoryManifest forDirectory(File dir) {
+		File key = dir.getAbsoluteFile();
+		synchronized (manifests) {
+			DirectoryManifest manifest = manifests.get(key);
+			if (manifest == null) {
+				manifest = new DirectoryManifest(key);
+				manifests.put(key, manifest);
+			}
+			return manifest;
+		}
+	}
+
+	/**
+	 * Forget the cached list, for example because the directory was replaced
+	 * @param dir
+	 */
+	public static void invalidate(File dir) {
+		synchronized (manifests) {
+			manifests.remove(dir.getAbsoluteFile());
+		}
+	}
+
+	private final File dir;
+	private final File file;
+
+	// the directory modification time that the names are valid for, and when they were scanned
+	private long dirModified = 0;
+	private long scanned = 0;
+	private HashSet<String> names = null;
+
+	private DirectoryManifest(File dir) {
+		this.dir = dir;
+		this.file = new File(dir, MANIFEST_FILE);
+	}
+
+	/**
+	 * @return The names of all files in the directory, except for the manifest
+	 */
+	public synchronized LinkedList<String> list() {
+		long modified = dir.lastModified();
+		if (names == null && modified != 0)
+			read();
+		if (names == null || modified == 0 || modified != dirModified || !isSettled())
+			scan();
+		return new LinkedList<String>(names);
+	}
+
+	/**
+	 * A change in the same timestamp unit as the last change before the scan 
+	 * would not be noticed.
+	 * @return Whether the directory had not changed for a while when it was scanned
+	 */
+	private boolean isSettled() {
+		return scanned - dirModified >= TIMESTAMP_RESOLUTION;
+	}
+
+	private void scan() {
+		Log.d(TAG, "Scanning "+dir.getName());
+		names = new HashSet<String>();
+		dirModified = 0;
+		if (!createFile())
+			return;
+		long modified = dir.lastModified();
+		long now = System.currentTimeMillis();
+		String[] entries = dir.list();
+		if (entries != null)
+			for (String name : entries)
+				names.add(name);
+		names.remove(MANIFEST_FILE);
+		write(modified, now);
+	}
+
+	/**
+	 * Creating the manifest file changes the modification time of the 
+	 * directory, but rewriting it later does not.
+	 * @return Whether the manifest file exists
+	 */
+	private boolean createFile() {
+		if (!dir.isDirectory())
+			return false;
+		try {
+			file.createNewFile();
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Error creating the manifest of "+dir.getName()+": "+e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Save the names
+	 * @param modified The modification time of the directory that the names are valid for
+	 * @param now The time of the scan
+	 */
+	private void write(long modified, long now) {
+		dirModified = modified;
+		scanned = now;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(2);
+			out.writeLong(dirModified);
+			out.writeLong(scanned);
+			out.writeInt(names.size());
+			for (String name : names)
+				out.writeUTF(name);
+			out.close();
+			byte[] data = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				fos.write(data);
+				new DataOutputStream(fos).writeLong(crc.getValue());
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing the manifest of "+dir.getName()+": "+e.getMessage());
+		}
+	}
+
+	private void read() {
+		if (!file.exists())
+			return;
+		DataInputStream in = null;
+		try {
+			in = MappedDataInputStream.map(file);
+			int length = in.available() - 8;
+			if (length < 0)
+				return;
+			byte[] data = new byte[length];
+			in.readFully(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if (in.readLong() != crc.getValue())
+				return;
+			DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(data));
+			if (dataIn.readInt() != 2)
+				return;
+			long modified = dataIn.readLong();
+			long time = dataIn.readLong();
+			int n = dataIn.readInt();
+			HashSet<String> result = new HashSet<String>();
+			for (int i = 0; i < n; i++)
+				result.add(dataIn.readUTF());
+			dirModified = modified;
+			scanned = time;
+			names = result;
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading the manifest of "+dir.getName()+": "+e.getMessage());
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) {}
+		}
+	}
+}
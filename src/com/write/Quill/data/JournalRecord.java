@@ -0,0 +1,57 @@
+package com.write.Quill.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * The framing of the records in the book journal
+ *
+ * Each journal record is its length, a checksum, and the data. The journal
+ * is only ever appended to, so if the app is killed while appending, the
+ * last record is truncated. Such a record is detected and the journal is
+ * only replayed up to the previous one.
+ *
+ * @author vbraun
+ *
+ */
+public class JournalRecord {
+	@SuppressWarnings("unused")
+	private static final String TAG = "JournalRecord";
+
+	/**
+	 * @param out
+	 * @param record The record data
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		out.writeInt(record.length);
+		out.writeLong(crc.getValue());
+		out.write(record);
+	}
+
+	/**
+	 * @param in The journal, whose available() must be the remaining length
+	 * @return The data of the next record, or null at the end of the journal
+	 * @throws IOException If the record is truncated or corrupt
+	 */
+	public static byte[] read(DataInputStream in) throws IOException {
+		if (in.available() <= 0)
+			return null;
+		int length = in.readInt();
+		long checksum = in.readLong();
+		if (length < 0 || length > in.available())
+			throw new EOFException("Truncated journal record");
+		byte[] record = new byte[length];
+		in.readFully(record);
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		if (crc.getValue() != checksum)
+			throw new IOException("Journal checksum mismatch");
+		return record;
+	}
+}
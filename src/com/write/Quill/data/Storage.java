@@ -1,21 +1,13 @@
 package com.write.Quill.data;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.UUID;
 
-import org.xeustechnologies.jtar.TarEntry;
-import org.xeustechnologies.jtar.TarInputStream;
-import org.xeustechnologies.jtar.TarOutputStream;
-
 import com.write.Quill.data.Book.BookLoadException;
 
 import junit.framework.Assert;
@@ -28,6 +20,7 @@ public abstract class Storage {
 	public final static String TAG = "Storage";
 	protected static final String NOTEBOOK_DIRECTORY_PREFIX = "notebook_";
 	protected static final String TEMPORARY_DIRECTORY_PREFIX = "temp_";
+	protected static final String REPLACED_DIRECTORY_PREFIX = "replaced_";
 
 	protected static Storage instance;
 	
@@ -40,6 +33,7 @@ public abstract class Storage {
 	 * Hook that runs after the instance singleton is initialized
 	 */
 	protected void postInitializaton() {
+		restoreReplacedDirectories();
 		deleteAllTemporaryDirectories();
 		Bookshelf.initialize(this);
 	}
@@ -140,18 +134,11 @@ public abstract class Storage {
 	}
 
 	public LinkedList<UUID> listBookUUIDs() {
-		FilenameFilter filter = new FilenameFilter() {
-		    public boolean accept(File dir, String name) {
-		        return name.startsWith(NOTEBOOK_DIRECTORY_PREFIX);
-		    }};
-		File[] entries = getFilesDir().listFiles(filter);
 		LinkedList<UUID> uuids = new LinkedList<UUID>();
-		if (entries == null) return uuids;
-		for (File bookdir : entries) {
-			String path = bookdir.getAbsolutePath();
-			int pos = path.lastIndexOf(NOTEBOOK_DIRECTORY_PREFIX);
-			pos += NOTEBOOK_DIRECTORY_PREFIX.length();
-			UUID uuid = UUID.fromString(path.substring(pos));
+		for (String name : DirectoryManifest.forDirectory(getFilesDir()).list()) {
+			if (!name.startsWith(NOTEBOOK_DIRECTORY_PREFIX)) continue;
+			int pos = NOTEBOOK_DIRECTORY_PREFIX.length();
+			UUID uuid = UUID.fromString(name.substring(pos));
 			uuids.add(uuid);
 		}
 		return uuids;
@@ -163,75 +150,78 @@ public abstract class Storage {
 	
 	public UUID importArchive(File file) throws StorageIOException {
 		Bookshelf.assertNoCurrentBook();
-		File filesFolder = getFilesDir();
-		File notebookFile = null; 
-		TarInputStream tis = null;
-		UUID uuid = null;
+		TemporaryDirectory tmp = newTemporaryDirectory();
 		try {
-			tis = new TarInputStream(new BufferedInputStream(new FileInputStream(file)));
-			TarEntry entry;
-			while((entry = tis.getNextEntry()) != null) {
-				// LogMessage(TAG, "importArchive "+entry);
-				if (entry.getName() == null)
-					throw new StorageIOException("Incorrect book archive file");
-				if (uuid == null) {
-					uuid = getBookUUIDfromDirectoryName(entry.getName());
-					if (uuid == null)
-						throw new StorageIOException("Incorrect book archive file");
-					File notebookDir = getBookDirectory(uuid);
-					if (!notebookDir.exists()) notebookDir.mkdir();
-				} else if (!uuid.equals(getBookUUIDfromDirectoryName(entry.getName())))
-					throw new StorageIOException("Incorrect book archive file");
-				notebookFile = new File(filesFolder, entry.getName());
-				int count;
-				byte data[] = new byte[2048];
-				FileOutputStream fos = new FileOutputStream(notebookFile);
-				BufferedOutputStream dest = new BufferedOutputStream(fos);
-				while((count = tis.read(data)) != -1) {
-					dest.write(data, 0, count);
-				}	
-				dest.flush();
-				dest.close();
-			}	
+			UUID uuid = BookArchive.extract(file, tmp);
+			LogMessage(TAG, "Extracted book "+uuid);
+			installBookDirectory(tmp, uuid);
+			return uuid;
 		} catch (IOException e) {
+			tmp.deleteAll();
 			throw new StorageIOException(e.getMessage());
-		} finally {
-			try {
-				if (tis != null)
-					tis.close();
-			} catch (IOException e) {
-				throw new StorageIOException(e.getMessage());
-			}			
 		}
-		if (uuid == null)
-			throw new StorageIOException("No ID in book archive file.");
-		return uuid;
 	}
 	
 	public void exportArchive(UUID uuid, File dest) throws StorageIOException {
 		try {
-			TarOutputStream out = new TarOutputStream( new BufferedOutputStream( new FileOutputStream(dest)));
-
-			File dir = getBookDirectory(uuid);
-			File[] filesToTar = dir.listFiles();
-			int count;
-			byte data[] = new byte[2048];
-			for(File f:filesToTar){
-				// LogMessage(TAG, "exportiArchive "+f);
-				String name = dir.getName() + File.separator + f.getName();
-				out.putNextEntry(new TarEntry(f, name));
-				BufferedInputStream origin = new BufferedInputStream(new FileInputStream(f));
-				while((count = origin.read(data)) != -1)
-					out.write(data, 0, count);
-		      out.flush();
-		      origin.close();
-		   }
-		   out.close();
+			BookArchive.writeCompressed(getBookDirectory(uuid), dest);
 		} catch (IOException e) {
 			throw new StorageIOException(e.getMessage());
 		}
 	}
 	
+	/**
+	 * Replace the book directory by a complete notebook directory. The 
+	 * directory is renamed, so it must be on the same file system. The 
+	 * previous book directory, if any, is moved out of the way first 
+	 * and then deleted. If the app is killed in between, the previous
+	 * book directory is restored at the next start.
+	 * @param dir A directory containing the notebook files
+	 * @param uuid The uuid of the notebook
+	 * @throws StorageIOException
+	 */
+	public void installBookDirectory(File dir, UUID uuid) throws StorageIOException {
+		BookDirectory bookDir = getBookDirectory(uuid);
+		DirectoryBase old = null;
+		if (bookDir.exists()) {
+			old = new DirectoryBase(this, REPLACED_DIRECTORY_PREFIX, uuid);
+			if (old.exists())
+				old.deleteAll();
+			if (!bookDir.renameTo(old))
+				throw new StorageIOException("Error moving "+bookDir.toString());
+		}
+		if (!dir.renameTo(bookDir)) {
+			if (old != null)
+				old.renameTo(bookDir);
+			throw new StorageIOException("Error renaming "+dir.toString());
+		}
+		DirectoryManifest.invalidate(bookDir);
+		DirectoryManifest.invalidate(getFilesDir());
+		if (old != null)
+			old.deleteAll();
+	}
+	
+	/**
+	 * Finish or roll back the book directory replacements that were 
+	 * interrupted. The previous book directory is only kept if the new 
+	 * one was not installed. 
+	 */
+	private void restoreReplacedDirectories() {
+		for (String name : DirectoryManifest.forDirectory(getFilesDir()).list()) {
+			if (!name.startsWith(REPLACED_DIRECTORY_PREFIX)) continue;
+			int pos = REPLACED_DIRECTORY_PREFIX.length();
+			UUID uuid = UUID.fromString(name.substring(pos));
+			DirectoryBase old = new DirectoryBase(this, REPLACED_DIRECTORY_PREFIX, uuid);
+			BookDirectory bookDir = getBookDirectory(uuid);
+			if (bookDir.exists())
+				old.deleteAll();
+			else if (old.renameTo(bookDir)) {
+				DirectoryManifest.invalidate(getFilesDir());
+				LogError(TAG, "Restored notebook "+uuid+" after an interrupted import");
+			}
+		}
+	}
+	
 	////////////////////////////////////////////////////
 	/// import old version
 	
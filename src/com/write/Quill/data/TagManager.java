@@ -17,6 +17,10 @@ import android.util.Log;
 /**
  * The tag manager keeps track of tags. Each Tag is a unique object. 
  * 
+ * Tag sets can be loaded from several threads at once, for example when 
+ * the pages of a book are loaded in parallel. Everything else must 
+ * happen in the UI thread.
+ * 
  * @author vbraun
  *
  */
@@ -153,14 +157,7 @@ public class TagManager {
 			// Log.d(TAG, "TagSet read n = "+n);
 			for (int i=0; i<n; i++) {
 				Tag tag = new Tag(in);
-				Tag existing_tag = findTag(tag.toString());
-				if (existing_tag != null) {
-					add(existing_tag);
-				} else {
-					add(tag);
-					allTags.add(tag);
-					allTagsByCount.add(tag);
-				}
+				add(intern(tag));
 			}
 			in.readInt();  // reserved1
 			in.readInt();  // reserved2
@@ -175,7 +172,7 @@ public class TagManager {
 	 */
 	public TagSet newTagSet() {
 		TagSet ts = new TagSet();
-		allTagSets.add(new WeakReference<TagSet>(ts));
+		registerTagSet(ts);
 		// Log.d(TAG, "size = "+allTagSets.size()+" "+ts);
 		return ts;
 	}
@@ -187,7 +184,7 @@ public class TagManager {
 	 * @return a Tag with the given name. Might be an already 
 	 * 		   existing Tag if it carries the same name.
 	 */
-	public Tag newTag(String name) {
+	public synchronized Tag newTag(String name) {
 		Tag t = findTag(name);
 		if (t == null) {
 			t = new Tag(name);
@@ -198,10 +195,29 @@ public class TagManager {
 		return t;
 	}
 	
-	public TagSet loadTagSet(DataInputStream in) throws IOException {
-		TagSet ts = new TagSet(in);
+	/**
+	 * Return the unique tag with the same name, adding the tag if there is none yet
+	 * 
+	 * @param tag a freshly read tag
+	 * @return the existing tag of that name or the given tag
+	 */
+	private synchronized Tag intern(Tag tag) {
+		Tag existing_tag = findTag(tag.toString());
+		if (existing_tag != null)
+			return existing_tag;
+		allTags.add(tag);
+		allTagsByCount.add(tag);
+		return tag;
+	}
+	
+	private synchronized void registerTagSet(TagSet ts) {
 		allTagSets.add(new WeakReference<TagSet>(ts));
 		// Log.d(TAG, "size = "+allTagSets.size()+" "+ts);
+	}
+	
+	public TagSet loadTagSet(DataInputStream in) throws IOException {
+		TagSet ts = new TagSet(in);
+		registerTagSet(ts);
 		return ts;
 	}
 	
@@ -212,7 +228,7 @@ public class TagManager {
 	 * @param tag
 	 * @return null if no such tag exists
 	 */
-	public Tag findTagExcept(String name, Tag tag) {
+	public synchronized Tag findTagExcept(String name, Tag tag) {
 		ListIterator<Tag> iter = allTags.listIterator();
 		while (iter.hasNext()) {
 			Tag t = iter.next();
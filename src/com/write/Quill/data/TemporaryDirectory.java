@@ -1,7 +1,5 @@
 package com.write.Quill.data;
 
-import java.io.File;
-import java.io.FilenameFilter;
 import java.util.LinkedList;
 import java.util.UUID;
 
@@ -11,23 +9,17 @@ public class TemporaryDirectory extends DirectoryBase {
 	
 	public TemporaryDirectory(Storage storage, UUID uuid) {
 		super(storage, Storage.TEMPORARY_DIRECTORY_PREFIX, uuid);
-		mkdir();
+		if (mkdir())
+			DirectoryManifest.invalidate(getParentFile());
 	}
 
 	public static LinkedList<TemporaryDirectory> allTemporaryDirectories() {
 		Storage storage = Storage.getInstance();
-		FilenameFilter filter = new FilenameFilter() {
-		    public boolean accept(File dir, String name) {
-		        return name.startsWith(Storage.TEMPORARY_DIRECTORY_PREFIX);
-		    }};
-		File[] entries = storage.getFilesDir().listFiles(filter);
 		LinkedList<TemporaryDirectory> dirs = new LinkedList<TemporaryDirectory>();
-		if (entries == null) return dirs;
-		for (File tempdir : entries) {
-			String path = tempdir.getAbsolutePath();
-			int pos = path.lastIndexOf(Storage.TEMPORARY_DIRECTORY_PREFIX);
-			pos += Storage.TEMPORARY_DIRECTORY_PREFIX.length();
-			UUID uuid = UUID.fromString(path.substring(pos));
+		for (String name : DirectoryManifest.forDirectory(storage.getFilesDir()).list()) {
+			if (!name.startsWith(Storage.TEMPORARY_DIRECTORY_PREFIX)) continue;
+			int pos = Storage.TEMPORARY_DIRECTORY_PREFIX.length();
+			UUID uuid = UUID.fromString(name.substring(pos));
 			dirs.add(new TemporaryDirectory(storage, uuid));
 		}
 		return dirs;
@@ -12,8 +12,6 @@ import com.write.Quill.data.Bookshelf;
 
 import name.vbraun.view.write.Page;
 
-import junit.framework.Assert;
-
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -34,10 +32,14 @@ public class ThumbnailAdapter extends BaseAdapter {
 	protected int thumbnail_width = MIN_THUMBNAIL_WIDTH;
 
 	private Context context;
+	private ThumbnailCache cache;
+	private ThumbnailLoader loader;
 
 	
-	public ThumbnailAdapter(Context c) {
+	public ThumbnailAdapter(Context c, ThumbnailLoader loader) {
 		context = c;
+		cache = ThumbnailCache.getInstance(c);
+		this.loader = loader;
     	computeItemHeights();
 	}
 
@@ -70,6 +72,7 @@ public class ThumbnailAdapter extends BaseAdapter {
     	private static final String TAG = "Thumbnail";
     	protected int position;
     	protected Bitmap bitmap;
+    	protected ThumbnailLoader.Request request;
     	protected Page page;
     	protected TagOverlay tagOverlay = null;
     	protected boolean checked = false;
@@ -129,16 +132,25 @@ public class ThumbnailAdapter extends BaseAdapter {
     	
     
     IdentityHashMap<Page, Boolean> selectedPages = new IdentityHashMap<Page, Boolean>();
-    LinkedList<Thumbnail> unfinishedThumbnails = new LinkedList<Thumbnail>();
     
-    protected boolean renderThumbnail() {
-    	if (unfinishedThumbnails.isEmpty()) return false;
-    	Thumbnail thumb = unfinishedThumbnails.pop();
-    	Page page = thumb.page;
-		thumb.bitmap = page.renderBitmap(thumbnail_width, 2*thumbnail_width, true);
-		Assert.assertTrue(thumb.bitmap != null);
-		thumb.invalidate();
-		return true;
+    /**
+     * Prefetch the thumbnails of the cells that are not visible yet
+     * @param from The first position
+     * @param to The last position
+     */
+    protected void prefetch(int from, int to) {
+        Book book = Bookshelf.getCurrentBook();
+        int n = book.filteredPagesSize();
+        LinkedList<Page> pages = new LinkedList<Page>();
+        LinkedList<Integer> positions = new LinkedList<Integer>();
+        for (int position = Math.max(from, 0); position <= to && position < n; position++) {
+        	Page page = book.getFilteredPage(n - 1 - position);
+        	if (cache.getFromMemory(page, thumbnail_width) != null)
+        		continue;
+        	pages.add(page);
+        	positions.add(position);
+        }
+        loader.prefetch(pages, positions, thumbnail_width);
     }
     
 	@Override
@@ -150,20 +162,22 @@ public class ThumbnailAdapter extends BaseAdapter {
             thumb = (Thumbnail) convertView;
             if (thumb.position == position)
             	return thumb;
-            if (thumb.bitmap != null)
-            	thumb.bitmap.recycle();
+            // the bitmap is owned by the thumbnail cache, do not recycle
+            if (thumb.request != null)
+            	thumb.request.cancel();
         }
         Book book = Bookshelf.getCurrentBook();
         // Log.d(TAG, "getView "+position+" "+book.filteredPagesSize());
         Page page = book.getFilteredPage(book.filteredPagesSize() - 1 - position);
         thumb.page = page;
         thumb.position = position;
-        thumb.bitmap = null;
         thumb.tagOverlay = new TagOverlay(context, page.tags, true);
         thumb.requestLayout();     
-        unfinishedThumbnails.add(thumb);
-        ThumbnailView grid = (ThumbnailView)parent;
-        grid.postIncrementalDraw();
+        thumb.bitmap = cache.getFromMemory(page, thumbnail_width);
+        if (thumb.bitmap == null)
+        	thumb.request = loader.load(thumb, page, position, thumbnail_width);
+        else
+        	thumb.request = null;
 		return thumb;
 	}
 	
@@ -0,0 +1,305 @@
+package com.write.Quill.thumbnail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import name.vbraun.view.write.MappedDataInputStream;
+import name.vbraun.view.write.Page;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Two-level cache of page thumbnails
+ *
+ * The thumbnails are kept in memory in least-recently-used order, up to a
+ * fixed number of bytes. Thumbnails of unmodified pages are also written as
+ * compressed files to the cache directory, one file per page and width, so
+ * they do not need to be rendered again in the next session.
+ *
+ * An entry is valid for the modification stamp of the page, see
+ * {@link Page#getModificationStamp()}. Changing the page therefore makes
+ * the thumbnail stale, and it is rendered again when it is requested.
+ *
+ * The bitmaps are shared, and must not be recycled by the caller.
+ *
+ * @author vbraun
+ *
+ */
+public class ThumbnailCache {
+	private static final String TAG = "ThumbnailCache";
+
+	private static final String DIRECTORY = "thumbnails";
+	private static final String FILE_SUFFIX = ".thumb";
+	private static final int FILE_VERSION = 1;
+	private static final long MAX_DISK_BYTES = 32 * 1024 * 1024;
+
+	private static ThumbnailCache instance = null;
+
+	public static synchronized ThumbnailCache getInstance(Context context) {
+		if (instance == null)
+			instance = new ThumbnailCache(context.getApplicationContext().getCacheDir());
+		return instance;
+	}
+
+	private static class Entry {
+		private final long stamp;
+		private final Bitmap bitmap;
+
+		private Entry(long stamp, Bitmap bitmap) {
+			this.stamp = stamp;
+			this.bitmap = bitmap;
+		}
+
+		private int bytes() {
+			return bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	}
+
+	private final File dir;
+	private final long maxBytes;
+	private long bytes = 0;
+	// entries by file name, in access order
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	// the file names of the thumbnails that are being rendered
+	private final HashSet<String> rendering = new HashSet<String>();
+	private final Handler diskHandler;
+
+	private ThumbnailCache(File cacheDir) {
+		dir = new File(cacheDir, DIRECTORY);
+		dir.mkdirs();
+		maxBytes = Runtime.getRuntime().maxMemory() / 8;
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		diskHandler = new Handler(thread.getLooper());
+		diskHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				trimDisk();
+			}
+		});
+	}
+
+	private static String fileName(Page page, int width) {
+		return page.getUUID().toString() + "-" + width + FILE_SUFFIX;
+	}
+
+	/**
+	 * Return the thumbnail of the page from memory or from the cache
+	 * directory, or render it if it is missing or stale. Can be called from
+	 * any thread, but must not be called while holding the page lock.
+	 * @param page
+	 * @param width The thumbnail width
+	 * @return The thumbnail bitmap
+	 */
+	public Bitmap get(Page page, int width) {
+		long stamp = page.getModificationStamp();
+		String name = fileName(page, width);
+		Bitmap bitmap = getFromMemory(name, stamp);
+		if (bitmap != null)
+			return bitmap;
+		// another thread waits for the same thumbnail instead of rendering it twice
+		if (!startRendering(name))
+			return get(page, width);
+		try {
+			bitmap = read(new File(dir, name), stamp);
+			if (bitmap == null) {
+				bitmap = page.renderBitmap(width, 2*width, true);
+				if (!page.isModified() && !page.hasContentError() && page.getModificationStamp() == stamp)
+					postWrite(name, stamp, bitmap);
+			}
+			put(name, new Entry(stamp, bitmap));
+		} finally {
+			finishRendering(name);
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * Claim a thumbnail for rendering, or wait until another thread finished rendering it
+	 * @param name The file name
+	 * @return Whether the caller should render the thumbnail
+	 */
+	private synchronized boolean startRendering(String name) {
+		if (rendering.add(name))
+			return true;
+		boolean interrupted = false;
+		while (rendering.contains(name))
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return false;
+	}
+	
+	private synchronized void finishRendering(String name) {
+		rendering.remove(name);
+		notifyAll();
+	}
+
+	/**
+	 * Return the thumbnail only if it is in memory, without blocking
+	 * @param page
+	 * @param width The thumbnail width
+	 * @return The up-to-date thumbnail or null
+	 */
+	public Bitmap getFromMemory(Page page, int width) {
+		return getFromMemory(fileName(page, width), page.getModificationStamp());
+	}
+
+	private synchronized Bitmap getFromMemory(String name, long stamp) {
+		Entry entry = entries.get(name);
+		if (entry == null)
+			return null;
+		if (entry.stamp != stamp) {
+			entries.remove(name);
+			bytes -= entry.bytes();
+			return null;
+		}
+		return entry.bitmap;
+	}
+
+	private synchronized void put(String name, Entry entry) {
+		Entry old = entries.put(name, entry);
+		if (old != null)
+			bytes -= old.bytes();
+		bytes += entry.bytes();
+		Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			Entry eldest = iter.next().getValue();
+			if (eldest == entry)
+				break;
+			iter.remove();
+			bytes -= eldest.bytes();
+		}
+	}
+
+	/**
+	 * Remove all thumbnails from memory
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Read a thumbnail file
+	 * @param file
+	 * @param stamp The modification stamp of the page
+	 * @return The thumbnail or null if there is no valid thumbnail file
+	 */
+	private Bitmap read(File file, long stamp) {
+		if (!file.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = MappedDataInputStream.map(file);
+			if (in.readInt() != FILE_VERSION || in.readLong() != stamp)
+				return null;
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+			if (bitmap != null)
+				file.setLastModified(System.currentTimeMillis());
+			return bitmap;
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading "+file.getName()+": "+e.getMessage());
+			return null;
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private void postWrite(final String name, final long stamp, final Bitmap bitmap) {
+		diskHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				write(name, stamp, bitmap);
+			}
+		});
+	}
+
+	/**
+	 * Write a thumbnail file, replacing the thumbnail of an older version of the page
+	 * @param name The file name
+	 * @param stamp The modification stamp of the page
+	 * @param bitmap
+	 */
+	private void write(String name, long stamp, Bitmap bitmap) {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, data))
+			return;
+		File file = new File(dir, name);
+		File temp = new File(dir, name + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(temp);
+			try {
+				DataOutputStream out = new DataOutputStream(fos);
+				out.writeInt(FILE_VERSION);
+				out.writeLong(stamp);
+				out.writeInt(data.size());
+				data.writeTo(out);
+				out.flush();
+			} finally {
+				fos.close();
+			}
+			if (!temp.renameTo(file))
+				throw new IOException("Unable to rename "+temp.getName());
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing "+name+": "+e.getMessage());
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Delete the least recently used thumbnail files if they take too much space
+	 */
+	private void trimDisk() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		final long[] modified = new long[files.length];
+		long total = 0;
+		for (int i = 0; i < files.length; i++) {
+			total += files[i].length();
+			modified[i] = files[i].lastModified();
+		}
+		if (total <= MAX_DISK_BYTES)
+			return;
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.signum(modified[a] - modified[b]);
+			}
+		});
+		for (int i = 0; i < order.length && total > MAX_DISK_BYTES; i++) {
+			File file = files[order[i]];
+			total -= file.length();
+			file.delete();
+		}
+		Log.d(TAG, "Trimmed thumbnail files to "+total+" bytes");
+	}
+}
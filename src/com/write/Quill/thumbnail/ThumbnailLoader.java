@@ -0,0 +1,232 @@
+package com.write.Quill.thumbnail;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.write.Quill.thumbnail.ThumbnailAdapter.Thumbnail;
+
+import name.vbraun.view.write.Page;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Render thumbnails with a few worker threads
+ *
+ * The requests are not processed in the order in which they were made.
+ * Whenever a worker becomes free it takes the request for the cell that is
+ * closest to the top of the viewport. Requests outside of the viewport are
+ * prefetches, the ones ahead in the scroll direction go first. Requests for
+ * cells that were recycled are cancelled.
+ *
+ * The results are delivered in the UI thread. All methods must be called
+ * from the UI thread.
+ *
+ * @author vbraun
+ *
+ */
+public class ThumbnailLoader {
+	private static final String TAG = "ThumbnailLoader";
+
+	private static final int MAX_THREADS = 3;
+
+	public class Request {
+		private final Thumbnail target;
+		private final Page page;
+		private final int position;
+		private final int width;
+		private volatile boolean cancelled = false;
+
+		private Request(Thumbnail target, Page page, int position, int width) {
+			this.target = target;
+			this.page = page;
+			this.position = position;
+			this.width = width;
+		}
+
+		/**
+		 * Drop the request if it did not start yet, and do not deliver the result otherwise
+		 */
+		public void cancel() {
+			cancelled = true;
+			synchronized (pending) {
+				pending.remove(this);
+			}
+		}
+	}
+
+	private final ThumbnailCache cache;
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
+	private ExecutorService executor = null;
+
+	// the requests that did not start yet
+	private final LinkedList<Request> pending = new LinkedList<Request>();
+	private final LinkedList<Request> prefetches = new LinkedList<Request>();
+
+	// the visible positions and the scroll direction, guarded by pending
+	private int first = 0;
+	private int last = 0;
+	private boolean scrollingDown = true;
+
+	public ThumbnailLoader(ThumbnailCache cache) {
+		this.cache = cache;
+	}
+
+	private void start() {
+		if (executor != null)
+			return;
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+		executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+	}
+
+	/**
+	 * Cancel all requests and stop the worker threads, they are started
+	 * again by the next request
+	 */
+	public void stop() {
+		cancelAll();
+		if (executor == null)
+			return;
+		executor.shutdown();
+		executor = null;
+	}
+
+	/**
+	 * Cancel all requests, for example because the adapter changed
+	 */
+	public void cancelAll() {
+		synchronized (pending) {
+			for (Request request : pending)
+				request.cancelled = true;
+			pending.clear();
+		}
+		prefetches.clear();
+	}
+
+	/**
+	 * Set the visible cells
+	 * @param firstVisible The first visible position
+	 * @param lastVisible The last visible position
+	 */
+	public void setViewport(int firstVisible, int lastVisible) {
+		synchronized (pending) {
+			if (firstVisible != first)
+				scrollingDown = firstVisible > first;
+			first = firstVisible;
+			last = lastVisible;
+		}
+	}
+
+	/**
+	 * @return Whether the cells are scrolling towards higher positions
+	 */
+	public boolean isScrollingDown() {
+		synchronized (pending) {
+			return scrollingDown;
+		}
+	}
+
+	/**
+	 * Render the thumbnail of a cell. When done, the bitmap is set and the
+	 * cell invalidated unless the request was cancelled.
+	 * @param target The cell
+	 * @param page
+	 * @param position The position of the cell
+	 * @param width The thumbnail width
+	 * @return The request
+	 */
+	public Request load(Thumbnail target, Page page, int position, int width) {
+		Request request = new Request(target, page, position, width);
+		submit(request);
+		return request;
+	}
+
+	/**
+	 * Replace the previous prefetches. The thumbnails are only put into the cache.
+	 * @param pages The pages to prefetch
+	 * @param positions Their positions
+	 * @param width The thumbnail width
+	 */
+	public void prefetch(LinkedList<Page> pages, LinkedList<Integer> positions, int width) {
+		for (Request request : prefetches)
+			request.cancel();
+		prefetches.clear();
+		Iterator<Integer> iter = positions.iterator();
+		for (Page page : pages) {
+			Request request = new Request(null, page, iter.next(), width);
+			prefetches.add(request);
+			submit(request);
+		}
+	}
+
+	private void submit(Request request) {
+		start();
+		synchronized (pending) {
+			pending.add(request);
+		}
+		// each task runs the most urgent request at the time it starts
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				Request next = takeNext();
+				if (next != null)
+					render(next);
+			}
+		});
+	}
+
+	private Request takeNext() {
+		synchronized (pending) {
+			Request best = null;
+			int bestPriority = Integer.MAX_VALUE;
+			for (Request request : pending) {
+				int priority = priority(request);
+				if (priority < bestPriority) {
+					best = request;
+					bestPriority = priority;
+				}
+			}
+			if (best != null)
+				pending.remove(best);
+			return best;
+		}
+	}
+
+	/**
+	 * Must be called with the pending lock held
+	 * @return The priority of the request, lower is more urgent
+	 */
+	private int priority(Request request) {
+		int visible = last - first + 1;
+		int position = request.position;
+		if (request.target != null && position >= first && position <= last)
+			return position - first;
+		int distance = (position > last) ? position - last : first - position;
+		boolean ahead = (position > last) == scrollingDown;
+		return visible + (ahead ? distance : 2 * distance);
+	}
+
+	private void render(final Request request) {
+		if (request.cancelled)
+			return;
+		final Bitmap bitmap = cache.get(request.page, request.width);
+		if (request.target == null)
+			return;
+		uiHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				Thumbnail target = request.target;
+				if (request.cancelled || target.request != request)
+					return;
+				target.request = null;
+				target.bitmap = bitmap;
+				target.invalidate();
+			}
+		});
+	}
+}
@@ -8,21 +8,24 @@ import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Gravity;
+import android.widget.AbsListView;
 import android.widget.GridView;
+import android.widget.ListAdapter;
 
-public class ThumbnailView extends GridView {
+public class ThumbnailView extends GridView implements AbsListView.OnScrollListener {
 	private static final String TAG = "ThumbnailView";
 	
 	protected Context context;
 	protected static final int PADDING = 10;
 	protected ThumbnailAdapter adapter = null;
+	protected ThumbnailLoader loader;
 	private Handler handler = new Handler();
 
 	public void notifyTagsChanged() {
     	Log.d(TAG, "notifyTagsChanged");
-		handler.removeCallbacks(incrementalDraw);
+		loader.cancelAll();
 		int width = adapter.thumbnail_width;
-		adapter = new ThumbnailAdapter(context);
+		adapter = new ThumbnailAdapter(context, loader);
 		adapter.thumbnail_width = width;
 		adapter.setNumColumns(getNumColumns());
 		setAdapter(adapter);
@@ -36,7 +39,9 @@ public class ThumbnailView extends GridView {
 		setFastScrollEnabled(true);
 		setGravity(Gravity.CENTER);
 		setVerticalSpacing(PADDING);
-		adapter = new ThumbnailAdapter(context);
+		setOnScrollListener(this);
+		loader = new ThumbnailLoader(ThumbnailCache.getInstance(context));
+		adapter = new ThumbnailAdapter(context, loader);
 		adapter.thumbnail_width = ThumbnailAdapter.MIN_THUMBNAIL_WIDTH;
         setAdapter(adapter);
 	}
@@ -56,20 +61,32 @@ public class ThumbnailView extends GridView {
 		adapter.setNumColumns(columns);
 	}
 
-	protected void postIncrementalDraw() {
-		handler.removeCallbacks(incrementalDraw);
-        handler.post(incrementalDraw);		
+	@Override
+	public void setAdapter(ListAdapter adapter) {
+		loader.cancelAll();
+		prefetchFirst = -1;
+		super.setAdapter(adapter);
 	}
 	
-    private Runnable incrementalDraw = new Runnable() {
-  	   public void run() {
-  		   boolean rc = adapter.renderThumbnail();
-  		   // Log.d(TAG, "incrementalDraw "+rc);
-  		   if (rc) {
-  			   postIncrementalDraw();
-  		   }
-  	   }
-  	};
+	private int prefetchFirst = -1;
+	
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if (visibleItemCount == 0 || firstVisibleItem == prefetchFirst)
+			return;
+		prefetchFirst = firstVisibleItem;
+		int lastVisibleItem = firstVisibleItem + visibleItemCount - 1;
+		loader.setViewport(firstVisibleItem, lastVisibleItem);
+		// prefetch one screen ahead in the scroll direction
+		if (loader.isScrollingDown())
+			adapter.prefetch(lastVisibleItem + 1, lastVisibleItem + visibleItemCount);
+		else
+			adapter.prefetch(firstVisibleItem - visibleItemCount, firstVisibleItem - 1);
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+	}
 
     public void checkedStateChanged(int position, boolean checked) {
     	adapter.checkedStateChanged(position, checked);
@@ -84,7 +101,7 @@ public class ThumbnailView extends GridView {
     @Override
     protected void onDetachedFromWindow() {
     	// Log.e(TAG, "onDetachedFromWindow");
-    	handler.removeCallbacks(incrementalDraw);
+    	loader.stop();
     	super.onDetachedFromWindow();	
     }
     
@@ -92,7 +109,6 @@ public class ThumbnailView extends GridView {
     protected void onAttachedToWindow() {
     	// Log.e(TAG, "onAttachedToWindow");
     	super.onAttachedToWindow();
-        handler.post(incrementalDraw);		
    }
     
     @Override
@@ -34,6 +34,22 @@ public class Background {
 	private final RectF paper = new RectF();
 	private final Paint paint = new Paint();
 	
+	public Background() {
+	}
+	
+	/**
+	 * Copy constructor. The copy has its own paint, so it can be drawn
+	 * concurrently with the original. 
+	 * @param background
+	 */
+	public Background(Background background) {
+		setPaperType(background.paperType);
+		aspectRatio = background.aspectRatio;
+		heightMm = background.heightMm;
+		widthMm = background.widthMm;
+		paperColour = background.paperColour;
+	}
+	
 
 	public void setPaperType(Paper.Type paper) {
 		paperType = paper;
@@ -0,0 +1,170 @@
+package name.vbraun.view.write;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.util.Log;
+
+/**
+ * Content-addressed image files in the book directory
+ *
+ * An image file is named by the SHA-1 hash of its content and the
+ * extension, for example "2fd4e1c67a2d28fced849ee1bb76e7391b93eb12.jpg".
+ * Such a blob never changes, so any number of images can refer to the same
+ * file. Duplicating a page does not copy the image files.
+ *
+ * Older books name the image files by the uuid of the image. The image
+ * editor still writes its result to that name, which is then moved into
+ * the store by {@link #intern(File)}.
+ *
+ * Blobs are deleted when the book is saved and no image refers to them any
+ * more. The blobs created since the last save are remembered, see
+ * {@link #takeCreated(File)}, so that they are deleted as well if the image
+ * was removed again before the save.
+ *
+ * @author vbraun
+ *
+ */
+public class BlobStore {
+	private static final String TAG = "BlobStore";
+
+	private static final int HASH_LENGTH = 40;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// blob file names that were created since the last save, by directory
+	private static final HashMap<File, HashSet<String>> created = new HashMap<File, HashSet<String>>();
+
+	/**
+	 * @param name A file name
+	 * @return Whether the file is named by its content hash
+	 */
+	public static boolean isContentAddressed(String name) {
+		int dot = name.indexOf('.');
+		if (dot != HASH_LENGTH)
+			return false;
+		for (int i = 0; i < HASH_LENGTH; i++)
+			if (Character.digit(name.charAt(i), 16) < 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Move a newly written image file into the store in the same directory
+	 * @param file An image file that nothing else refers to
+	 * @return The blob with the same content
+	 */
+	public static File intern(File file) {
+		if (isContentAddressed(file.getName()))
+			return file;
+		File blob;
+		try {
+			blob = blobFile(file);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to hash "+file.getName()+": "+e.getMessage());
+			return file;
+		}
+		if (blob.exists())
+			file.delete();
+		else if (!file.renameTo(blob)) {
+			Log.e(TAG, "Unable to rename "+file.getName());
+			return file;
+		}
+		addCreated(blob);
+		return blob;
+	}
+
+	/**
+	 * Return a blob with the same content as the file, which can be shared
+	 * by another image. The file is copied only if it is not in the store
+	 * yet, that is, if it is an image file of an older book.
+	 * @param file An image file
+	 * @param dir The book directory
+	 * @return The blob
+	 */
+	public static File share(File file, File dir) {
+		if (isContentAddressed(file.getName()) && dir.equals(file.getParentFile()))
+			return file;
+		File blob;
+		try {
+			blob = new File(dir, blobFile(file).getName());
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to hash "+file.getName()+": "+e.getMessage());
+			return file;
+		}
+		if (!blob.exists()) {
+			File temp = new File(blob.getPath() + ".tmp");
+			com.write.Quill.image.Util.copyfile(file, temp);
+			if (!temp.renameTo(blob)) {
+				temp.delete();
+				return file;
+			}
+		}
+		addCreated(blob);
+		return blob;
+	}
+
+	/**
+	 * @param dir The book directory
+	 * @return The names of the blobs that were created in the directory since the last call
+	 */
+	public static HashSet<String> takeCreated(File dir) {
+		synchronized (created) {
+			HashSet<String> names = created.remove(dir.getAbsoluteFile());
+			if (names == null)
+				names = new HashSet<String>();
+			return names;
+		}
+	}
+
+	private static void addCreated(File blob) {
+		File dir = blob.getAbsoluteFile().getParentFile();
+		synchronized (created) {
+			HashSet<String> names = created.get(dir);
+			if (names == null) {
+				names = new HashSet<String>();
+				created.put(dir, names);
+			}
+			names.add(blob.getName());
+		}
+	}
+
+	/**
+	 * @return The content-addressed file in the same directory
+	 */
+	private static File blobFile(File file) throws IOException {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String ext = (dot < 0) ? "" : name.substring(dot);
+		return new File(file.getParentFile(), hash(file) + ext);
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 is not available");
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			int count;
+			while ((count = in.read(buffer)) != -1)
+				digest.update(buffer, 0, count);
+		} finally {
+			in.close();
+		}
+		byte[] bytes = digest.digest();
+		char[] hex = new char[2 * bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
@@ -2,6 +2,7 @@ package name.vbraun.view.write;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Random;
 
 import com.write.Quill.artist.Artist;
 
@@ -24,6 +25,10 @@ public abstract class Graphics {
 
 	protected Tool tool;
 
+	// stable identifier, saved with the page. Copies get a new id.
+	protected long id = newId();
+	private static final Random random = new Random();
+
 	/**
 	 * Copy constructor All derived classes must implement a copy constructor
 	 * 
@@ -42,6 +47,22 @@ public abstract class Graphics {
 		return tool;
 	}
 
+	/**
+	 * @return A non-zero identifier that is unique (with overwhelming probability) and
+	 * does not change when the page is saved and loaded again
+	 */
+	public long getId() {
+		return id;
+	}
+
+	protected static long newId() {
+		long id;
+		do {
+			id = random.nextLong();
+		} while (id == 0);
+		return id;
+	}
+
 	protected Transformation transform = new Transformation();
 	protected float offset_x = 0f;
 	protected float offset_y = 0f;
@@ -52,12 +73,14 @@ public abstract class Graphics {
 	protected boolean recompute_bounding_box = true;
 
 	public RectF getBoundingBox() {
+		syncTransform();
 		if (recompute_bounding_box)
 			computeBoundingBox();
 		return bBoxFloat;
 	}
 
 	public Rect getBoundingBoxRoundOut() {
+		syncTransform();
 		if (recompute_bounding_box)
 			computeBoundingBox();
 		return bBoxInt;
@@ -68,10 +91,36 @@ public abstract class Graphics {
 	 */
 	abstract protected void computeBoundingBox();
 
+	/**
+	 * Compute the bounding box in page coordinates, that is, independent of
+	 * the current transformation. This is what the {@link GraphicsIndex} uses.
+	 * 
+	 * @param box
+	 *            The rectangle to store the result in
+	 */
+	abstract protected void computePageBoundingBox(RectF box);
+
+	/**
+	 * Set the transformation from page to screen coordinates. The
+	 * transformation object is shared, not copied. Changes to it are picked
+	 * up by {@link #syncTransform()}, so changing the transformation of a
+	 * page does not need to touch every graphics object.
+	 * 
+	 * @param transform
+	 *            The transformation, usually the one of the page
+	 */
 	protected void setTransform(Transformation transform) {
-		if (this.transform.equals(transform))
+		this.transform = transform;
+		syncTransform();
+	}
+
+	/**
+	 * Update offset_x, offset_y, and scale if the transformation changed.
+	 * Must be called before using them.
+	 */
+	protected final void syncTransform() {
+		if (offset_x == transform.offset_x && offset_y == transform.offset_y && scale == transform.scale)
 			return;
-		this.transform.set(transform);
 		offset_x = transform.offset_x;
 		offset_y = transform.offset_y;
 		scale = transform.scale;
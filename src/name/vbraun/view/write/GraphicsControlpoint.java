@@ -140,6 +140,14 @@ public abstract class GraphicsControlpoint extends Graphics {
 		return -1;
 	}
 	
+	/**
+	 * Same as {@link #boundingBoxInset()} but in page coordinates
+	 * @return
+	 */
+	protected float pageBoundingBoxInset() { 
+		return 0;
+	}
+	
 	protected final Paint fillPaint, outlinePaint;
 	
 	/**
@@ -183,6 +191,20 @@ public abstract class GraphicsControlpoint extends Graphics {
 		recompute_bounding_box = false;
 	}
 
+	@Override
+	protected void computePageBoundingBox(RectF box) {
+		ListIterator<Controlpoint> iter = controlpoints.listIterator();
+		Assert.assertTrue(iter.hasNext()); // must have at least one control point
+		Controlpoint p = iter.next();
+		box.set(p.x, p.y, p.x, p.y);
+		while (iter.hasNext()) {
+			p = iter.next();
+			box.union(p.x, p.y);
+		}
+		float extra = pageBoundingBoxInset();
+		box.inset(extra, extra);		
+	}
+
 	@Override
 	public float distance(float x_screen, float y_screen) {
 		// TODO Auto-generated method stub
@@ -25,6 +25,7 @@ import android.graphics.Paint.Style;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
+import android.os.Looper;
 import android.util.FloatMath;
 import android.util.Log;
 import android.widget.ImageButton;
@@ -40,10 +41,10 @@ public class GraphicsImage extends GraphicsControlpoint {
 	private final Rect rect = new Rect();
 	private final RectF rectF = new RectF();
 
-	private Bitmap bitmap = null;
 	private File file = null;
 
-	private int height, width;
+	// the size of the image file, or zero if it is not known yet
+	private int height = 0, width = 0;
 	private float sqrtAspect;
 
 	public enum FileType {
@@ -145,9 +146,9 @@ public class GraphicsImage extends GraphicsControlpoint {
 	}
 	
 	/**
-	 * The copy constructor
+	 * The copy constructor. The copy gets a new uuid but shares the image file.
 	 * @param image
-	 * @param dir the directory to copy the image file to
+	 * @param dir the book directory
 	 */
 	protected GraphicsImage(final GraphicsImage image, File dir) {
 		super(image);
@@ -165,9 +166,7 @@ public class GraphicsImage extends GraphicsControlpoint {
 		init();
 		if (image.getFile() == null) 
 			return;
-		final String fileName = getImageFileName(getUuid(), image.getFileType());
-		file = new File(dir, fileName);
-		com.write.Quill.image.Util.copyfile(image.getFile(), file);
+		file = BlobStore.share(image.getFile(), dir);
 	}
 
 	private void init() {
@@ -195,15 +194,10 @@ public class GraphicsImage extends GraphicsControlpoint {
 
 	@Override
 	public void draw(Canvas c, RectF bounding_box) {
-		if (file != null && bitmap == null)
-			try {
-				loadBitmap();
-			} catch (IOException e) {
-				Log.e(TAG, "loading bitmap: "+e.getMessage());
-			}
-		
 		computeScreenRect();
-		c.clipRect(0, 0, c.getWidth(), c.getHeight(), android.graphics.Region.Op.REPLACE);
+		Bitmap bitmap = null;
+		if (file != null)
+			bitmap = getBitmap(rect.width(), rect.height());
 
 		if (bitmap == null) {
 			c.drawRect(rect, paint);
@@ -244,7 +238,7 @@ public class GraphicsImage extends GraphicsControlpoint {
 			Controlpoint opposite = oppositeControlpoint(point);
 			float dx = opposite.x - point.x;
 			float dy = opposite.y - point.y;
-			float minDistance = minDistancePixel / scale;
+			float minDistance = minDistancePixel / transform.scale;
 			if (-minDistance <= dx && dx <= minDistance) {
 				float sgn = Math.signum(dx);
 				opposite.x = point.x + sgn * minDistance;
@@ -255,7 +249,7 @@ public class GraphicsImage extends GraphicsControlpoint {
 				opposite.y = point.y + sgn * minDistance;
 				dy = sgn *minDistance;
 			}
-			if (constrainAspect && bitmap != null) {
+			if (constrainAspect && width > 0) {
 				float r = (Math.abs(dx)+Math.abs(dy))/2;
 				dx = r * sqrtAspect * Math.signum(dx);
 				dy = r / sqrtAspect * Math.signum(dy);
@@ -285,8 +279,9 @@ public class GraphicsImage extends GraphicsControlpoint {
 	}
 
 	public void writeToStream(DataOutputStream out) throws IOException {
-		out.writeInt(1);  // protocol #1
+		out.writeInt(2);  // protocol #2
 		out.writeUTF(uuid.toString());
+		out.writeUTF(file == null ? "" : file.getName());
 		out.writeFloat(top_left.x);
 		out.writeFloat(top_right.x);
 		out.writeFloat(top_left.y);
@@ -297,10 +292,15 @@ public class GraphicsImage extends GraphicsControlpoint {
 	public GraphicsImage(DataInputStream in, File dir) throws IOException {
 		super(Tool.IMAGE);
 		int version = in.readInt();
-		if (version > 1)
+		if (version > 2)
 			throw new IOException("Unknown image version!");
 
 		uuid = UUID.fromString(in.readUTF());
+		String fileName;
+		if (version == 1)
+			fileName = getImageFileName(uuid, FileType.FILETYPE_JPG);
+		else
+			fileName = in.readUTF();
 		float left   = in.readFloat(); 
 		float right  = in.readFloat();
 		float top    = in.readFloat();
@@ -318,7 +318,8 @@ public class GraphicsImage extends GraphicsControlpoint {
 		controlpoints.add(top_right);
 		controlpoints.add(center);
 		init();
-		file = new File(dir, getImageFileName(uuid, FileType.FILETYPE_JPG));
+		if (fileName.length() > 0)
+			file = new File(dir, fileName);
 	}
 
 	@Override
@@ -336,12 +337,11 @@ public class GraphicsImage extends GraphicsControlpoint {
 		if (!checkFileName(fileName)) {
 			Log.e(TAG, "filename must be uuid.ext");
 		}
-		file = new File(fileName);
-		try {
-			loadBitmap();
-		} catch (IOException e) {
+		file = BlobStore.intern(new File(fileName));
+		width = height = 0;
+		loadBounds();
+		if (width == 0)
 			Log.e(TAG, "Unable to load file " + file.toString() + " (missing?");
-		}
 		this.constrainAspect = constrainAspect;
 		if (constrainAspect) {
 			float w = top_right.x - top_left.x;
@@ -358,47 +358,81 @@ public class GraphicsImage extends GraphicsControlpoint {
 
 	private final int IMAGE_MAX_SIZE = 1024;
 
-	private void loadBitmap() throws IOException {
+	/**
+	 * Read the size of the image file without decoding it
+	 */
+	private void loadBounds() {
 		Assert.assertNotNull(file);
-		InputStream fis;
-
-		BitmapFactory.Options o1 = new BitmapFactory.Options();
-		o1.inJustDecodeBounds = true;
-		fis = new FileInputStream(file);
-		BitmapFactory.decodeStream(fis, null, o1);
-		fis.close();
-
-		int h = o1.outHeight;
-		int w = o1.outWidth;
-		int scale = 1;
-		if (h > IMAGE_MAX_SIZE || w > IMAGE_MAX_SIZE) {
-			scale = (int) Math.pow(
-					2,
-					(int) Math.round(Math.log(IMAGE_MAX_SIZE
-							/ (double) Math.max(h, w))
-							/ Math.log(0.5)));
-		}
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getPath(), options);
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+			return;
+		width = options.outWidth;
+		height = options.outHeight;
+		sqrtAspect = FloatMath.sqrt((float)width / (float)height);
+	}
 
-		BitmapFactory.Options o2 = new BitmapFactory.Options();
-		o2.inSampleSize = scale;
-		fis = new FileInputStream(file);
-		try {
-			bitmap = BitmapFactory.decodeStream(fis, null, o2);
-		} catch (OutOfMemoryError e1) {
-			o2.inSampleSize = 8*scale;
-			try {
-				bitmap = BitmapFactory.decodeStream(fis, null, o2);
-			} catch (OutOfMemoryError e2) {
-				Log.e(TAG, "Not enough memory to load image");
-				bitmap = null;
-			}
-		}
-		fis.close();
+	/**
+	 * The image is decoded with the largest power of two as sample size that
+	 * still gives at least the requested size, but at most IMAGE_MAX_SIZE.
+	 * @param w The width on the screen, tiny thumbnails can round it to 0
+	 * @param h The height on the screen
+	 * @return The sample size
+	 */
+	private int sampleSize(int w, int h) {
+		w = Math.max(w, 1);
+		h = Math.max(h, 1);
+		int maxSampleSize = Math.max(width, height);
+		int sampleSize = 1;
+		while (sampleSize < maxSampleSize &&
+				width / (2*sampleSize) >= w && height / (2*sampleSize) >= h)
+			sampleSize *= 2;
+		while (Math.max(width, height) / sampleSize > IMAGE_MAX_SIZE)
+			sampleSize *= 2;
+		return sampleSize;
+	}
 
-		height = o2.outHeight;
-		width = o2.outWidth;
-		sqrtAspect = FloatMath.sqrt((float)width / (float)height);
+	/**
+	 * The UI thread does not wait for the image to be decoded, see
+	 * {@link ImageCache#request(File, int)}. Other threads, for example
+	 * the ones rendering thumbnails, decode it right away.
+	 * @param w The width on the screen
+	 * @param h The height on the screen
+	 * @return The image, decoded at a resolution suitable for the size, or null
+	 */
+	private Bitmap getBitmap(int w, int h) {
+		if (width == 0)
+			loadBounds();
+		if (width == 0)
+			return null;
+		if (Looper.myLooper() == Looper.getMainLooper())
+			return ImageCache.getInstance().request(file, sampleSize(w, h));
+		else
+			return ImageCache.getInstance().load(file, sampleSize(w, h));
 	}
 
-		
+	/**
+	 * Decode the image in the background so that it is ready when it is drawn
+	 * @param scale The scale of the page transformation it will be drawn with
+	 */
+	public void predecode(float scale) {
+		if (file == null)
+			return;
+		if (width == 0)
+			loadBounds();
+		if (width == 0)
+			return;
+		int w = (int)(Math.abs(top_right.x - top_left.x) * scale);
+		int h = (int)(Math.abs(bottom_left.y - top_left.y) * scale);
+		ImageCache.getInstance().request(file, sampleSize(w, h));
+	}
+
+	/**
+	 * Drop the decoded image from memory, it is decoded again when it is drawn
+	 */
+	public void releaseBitmap() {
+		if (file != null)
+			ImageCache.getInstance().release(file);
+	}
 }
@@ -0,0 +1,205 @@
+package name.vbraun.view.write;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import android.graphics.RectF;
+
+/**
+ * Spatial index for the graphics objects on a page
+ *
+ * This is a uniform grid in page coordinates, so it does not change if the
+ * page transformation changes. Each graphics object is stored in all grid
+ * cells that its bounding box touches. Queries return the objects in the
+ * order in which they were added, which is the order in which they have to
+ * be drawn.
+ *
+ * @author vbraun
+ *
+ * @param <T> The type of graphics objects
+ */
+public class GraphicsIndex<T extends Graphics> {
+	@SuppressWarnings("unused")
+	private static final String TAG = "GraphicsIndex";
+
+	// size of a grid cell in page coordinates (the page height is 1)
+	private static final float CELL_SIZE = 1 / 32f;
+
+	private class Entry {
+		private final T graphics;
+		private final int order;
+		private final int x0, y0, x1, y1;  // cell range, inclusive
+		private int stamp = 0;
+
+		private Entry(T graphics, int order, RectF box) {
+			this.graphics = graphics;
+			this.order = order;
+			x0 = cellX(box.left);
+			y0 = cellY(box.top);
+			x1 = cellX(box.right);
+			y1 = cellY(box.bottom);
+		}
+	}
+
+	private final IdentityHashMap<T, Entry> entries = new IdentityHashMap<T, Entry>();
+	private final HashMap<Long, ArrayList<Entry>> cells = new HashMap<Long, ArrayList<Entry>>();
+
+	// range of cells that have ever been populated
+	private int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE;
+	private int yMin = Integer.MAX_VALUE, yMax = Integer.MIN_VALUE;
+
+	private int nextOrder = 0;
+	private int queryStamp = 0;
+	private final RectF mRectF = new RectF();
+	private final ArrayList<Entry> found = new ArrayList<Entry>();
+
+	private final Comparator<Entry> drawingOrder = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry lhs, Entry rhs) {
+			return (lhs.order < rhs.order) ? -1 : ((lhs.order == rhs.order) ? 0 : 1);
+		}
+	};
+
+	private static int cellX(float x) {
+		return (int) Math.floor(x / CELL_SIZE);
+	}
+
+	private static int cellY(float y) {
+		return (int) Math.floor(y / CELL_SIZE);
+	}
+
+	private static long key(int x, int y) {
+		return (((long) x) << 32) | (y & 0xffffffffL);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean contains(T graphics) {
+		return entries.containsKey(graphics);
+	}
+
+	/**
+	 * Add a graphics object to the index. It will be returned after all
+	 * previously added objects.
+	 *
+	 * @param graphics
+	 */
+	public void add(T graphics) {
+		if (entries.containsKey(graphics))
+			remove(graphics);
+		graphics.computePageBoundingBox(mRectF);
+		Entry entry = new Entry(graphics, nextOrder++, mRectF);
+		entries.put(graphics, entry);
+		for (int x = entry.x0; x <= entry.x1; x++)
+			for (int y = entry.y0; y <= entry.y1; y++) {
+				Long k = key(x, y);
+				ArrayList<Entry> cell = cells.get(k);
+				if (cell == null) {
+					cell = new ArrayList<Entry>();
+					cells.put(k, cell);
+				}
+				cell.add(entry);
+			}
+		xMin = Math.min(xMin, entry.x0);
+		xMax = Math.max(xMax, entry.x1);
+		yMin = Math.min(yMin, entry.y0);
+		yMax = Math.max(yMax, entry.y1);
+	}
+
+	public void remove(T graphics) {
+		Entry entry = entries.remove(graphics);
+		if (entry == null)
+			return;
+		for (int x = entry.x0; x <= entry.x1; x++)
+			for (int y = entry.y0; y <= entry.y1; y++) {
+				Long k = key(x, y);
+				ArrayList<Entry> cell = cells.get(k);
+				if (cell == null)
+					continue;
+				cell.remove(entry);
+				if (cell.isEmpty())
+					cells.remove(k);
+			}
+	}
+
+	/**
+	 * Update the index after the bounding box of the graphics object changed.
+	 * The drawing order is preserved.
+	 *
+	 * @param graphics
+	 */
+	public void update(T graphics) {
+		Entry old = entries.get(graphics);
+		if (old == null)
+			return;
+		remove(graphics);
+		int order = nextOrder;
+		nextOrder = old.order;
+		add(graphics);
+		nextOrder = order;
+	}
+
+	public void clear() {
+		entries.clear();
+		cells.clear();
+		xMin = yMin = Integer.MAX_VALUE;
+		xMax = yMax = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Whether the rectangle covers every graphics object in the index
+	 *
+	 * @param rect
+	 *            A rectangle in page coordinates
+	 */
+	public boolean covers(RectF rect) {
+		if (entries.isEmpty())
+			return true;
+		return cellX(rect.left) < xMin && cellX(rect.right) > xMax &&
+				cellY(rect.top) < yMin && cellY(rect.bottom) > yMax;
+	}
+
+	/**
+	 * Find all graphics objects whose bounding box might intersect the given
+	 * rectangle. You still need to check the actual bounding box, the index
+	 * is only accurate up to the grid size.
+	 *
+	 * @param rect
+	 *            A rectangle in page coordinates
+	 * @param result
+	 *            The list to append the graphics objects to, in drawing order
+	 */
+	public void find(RectF rect, List<? super T> result) {
+		if (entries.isEmpty())
+			return;
+		int qx0 = Math.max(cellX(rect.left), xMin);
+		int qx1 = Math.min(cellX(rect.right), xMax);
+		int qy0 = Math.max(cellY(rect.top), yMin);
+		int qy1 = Math.min(cellY(rect.bottom), yMax);
+		queryStamp++;
+		found.clear();
+		for (int x = qx0; x <= qx1; x++)
+			for (int y = qy0; y <= qy1; y++) {
+				ArrayList<Entry> cell = cells.get(key(x, y));
+				if (cell == null)
+					continue;
+				for (int i = 0; i < cell.size(); i++) {
+					Entry entry = cell.get(i);
+					if (entry.stamp == queryStamp)
+						continue;
+					entry.stamp = queryStamp;
+					found.add(entry);
+				}
+			}
+		Collections.sort(found, drawingOrder);
+		for (int i = 0; i < found.size(); i++)
+			result.add(found.get(i).graphics);
+		found.clear();
+	}
+}
@@ -73,6 +73,7 @@ public class GraphicsLine extends GraphicsControlpoint {
 	
 	// this computes the argument to Paint.setStrokeWidth()
 	public float getScaledPenThickness() {
+		syncTransform();
 		return Stroke.getScaledPenThickness(scale, pen_thickness);
 	}
 	
@@ -84,6 +85,11 @@ public class GraphicsLine extends GraphicsControlpoint {
 		return -getScaledPenThickness()/2 - 1;
 	}
 	
+	@Override
+	protected float pageBoundingBoxInset() { 
+		return -getScaledPenThickness(1f)/2;
+	}
+	
 	
 	@Override
 	public boolean intersects(RectF screenRect) {
@@ -1,6 +1,7 @@
 package name.vbraun.view.write;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.UUID;
 
@@ -77,6 +78,16 @@ public class HandwriterView
 
 	private Bitmap bitmap;
 	protected Canvas canvas;
+	private final TileCache tileCache = new TileCache();
+	private final RectF mRectF = new RectF();
+	
+	// background rendering, the bitmap shows a scaled preview in the meantime
+	private final PageRenderer renderer;
+	private Bitmap previewBitmap;
+	private Canvas previewCanvas;
+	private Page bitmapPage = null;
+	private final Transformation bitmapTransform = new Transformation();
+	private final RectF previewRect = new RectF();
 	private Toast toast;
 	
 	private boolean palmShield = false;
@@ -168,7 +179,7 @@ public class HandwriterView
 			page.addImage(img);
 		} else
 			Assert.fail("Unknown graphics object");
-		page.draw(canvas, graphics.getBoundingBox());
+		pageChanged(graphics.getBoundingBox());
 		invalidate(graphics.getBoundingBoxRoundOut());
 	}
 	
@@ -184,19 +195,19 @@ public class HandwriterView
 			page.removeImage(img);
 		} else
 			Assert.fail("Unknown graphics object");
-		page.draw(canvas, graphics.getBoundingBox());
+		pageChanged(graphics.getBoundingBox());
 		invalidate(graphics.getBoundingBoxRoundOut());
 	}
 	
     public void add(LinkedList<Stroke> penStrokes) {
-    	getPage().strokes.addAll(penStrokes);
-		page.draw(canvas);
+    	getPage().addStrokes(penStrokes);
+		pageChanged();
     	invalidate();
     }
     
     public void remove(LinkedList<Stroke> penStrokes) {
-    	getPage().strokes.removeAll(penStrokes);
-		page.draw(canvas);
+    	getPage().removeStrokes(penStrokes);
+		pageChanged();
     	invalidate();
    }
     
@@ -206,19 +217,20 @@ public class HandwriterView
      * @param name The image file name (path+uuid+extension)
      */
     public void setImage(UUID uuid, String name, boolean constrainAspect) {
-    	for (GraphicsImage image : getPage().images)
+    	for (GraphicsImage image : getPage().getImages())
     		if (image.getUuid().equals(uuid)) {
     			if (name==null)
-    				getPage().images.remove(image);
+    				getPage().removeImage(image);
     			else { 
     				if (image.checkFileName(name)) {
         				image.setFile(name, constrainAspect);
+        				getPage().updateGraphics(image);
     				} else {
     					Log.e(TAG, "incorrect image file name");
-        				getPage().images.remove(image);
+        				getPage().removeImage(image);
     				}
     			}
-    			page.draw(canvas);
+    			pageChanged();
     			invalidate();
     			return;
     		}
@@ -226,7 +238,7 @@ public class HandwriterView
     }
 	
     public GraphicsImage getImage(UUID uuid) {
-    	for (GraphicsImage image : getPage().images)
+    	for (GraphicsImage image : getPage().getImages())
     		if (image.getUuid().equals(uuid))
     			return image;
     	Log.e(TAG, "getImage(): Image does not exists");
@@ -239,7 +251,7 @@ public class HandwriterView
 		Log.d(TAG, "Interrupting current interaction");
 		if (touchHandler != null) 
 			touchHandler.interrupt();
-		page.draw(canvas);
+		pageChanged();
 		invalidate();
 	}
 	
@@ -324,7 +336,7 @@ public class HandwriterView
 	
 	public void setPagePaperType(Paper.Type paper_type) {
 		page.setPaperType(paper_type);
-		page.draw(canvas);
+		pageChanged();
 		invalidate();
 	}
 
@@ -334,6 +346,7 @@ public class HandwriterView
 	
 	public void setPageAspectRatio(float aspect_ratio) {
 		page.setAspectRatio(aspect_ratio);
+		tileCache.invalidate(page);
 		setPageAndZoomOut(page);
 		invalidate();
 	}
@@ -420,6 +433,7 @@ public class HandwriterView
 		setDrawingCacheEnabled(false);
 		setWillNotDraw(false);
 		setBackgroundDrawable(null);
+		renderer = new PageRenderer(tileCache, onPageRenderedListener);
 		
 		Display display = ((WindowManager) 
         		context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
@@ -559,13 +573,14 @@ public class HandwriterView
 	
 	public void setPageAndZoomOut(Page new_page) {
 		if (new_page == null) return;
+		new_page.ensureLoaded();
 		page = new_page;
 		if (canvas == null) return;
 		if (getResources().getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE)
 			zoomFitWidth();
 		else
 			zoomOutOverview();
-		page.draw(canvas);
+		drawPage();
 		invalidate();
 	}
 	
@@ -630,14 +645,102 @@ public class HandwriterView
 			dy = H/2-y;// + (-scale)/2;
 		}
 		page.setTransform(dx, dy, scale, canvas);
-		page.draw(canvas);
+		drawPage();
 		invalidate();
 	}
 
 	
+	/**
+	 * Draw the page into the backing bitmap, using cached tiles where possible.
+	 * Call this after the page transformation changed. You still need to 
+	 * call invalidate() to update the screen.
+	 */
+	protected void drawPage() {
+		mRectF.set(0, 0, canvas.getWidth(), canvas.getHeight());
+		if (tileCache.findMissing(page, mRectF, null)) {
+			drawPreview();
+			tileCache.drawCached(canvas, page, mRectF);
+			renderer.render(page, mRectF);
+		} else {
+			renderer.cancel();
+			tileCache.draw(canvas, page, mRectF);
+		}
+		bitmapPage = page;
+		bitmapTransform.set(page.getTransform());
+	}
+
+	/**
+	 * Scale the current content of the backing bitmap to the new page
+	 * transformation. This is what we show until the background renderer is
+	 * finished.
+	 */
+	private void drawPreview() {
+		Transformation t = page.getTransform();
+		if (bitmapPage == page && bitmapTransform.equals(t))
+			return;
+		if (bitmapPage != page) {
+			canvas.drawARGB(0xff, 0xaa, 0xaa, 0xaa);
+			return;
+		}
+		previewCanvas.drawBitmap(bitmap, 0, 0, null);
+		canvas.drawARGB(0xff, 0xaa, 0xaa, 0xaa);
+		float scale = t.scale / bitmapTransform.scale;
+		float W = bitmap.getWidth();
+		float H = bitmap.getHeight();
+		previewRect.set(
+				-bitmapTransform.offset_x * scale + t.offset_x, 
+				-bitmapTransform.offset_y * scale + t.offset_y,
+				(W - bitmapTransform.offset_x) * scale + t.offset_x, 
+				(H - bitmapTransform.offset_y) * scale + t.offset_y);
+		canvas.drawBitmap(previewBitmap, null, previewRect, null);
+	}
+	
+	private final PageRenderer.OnPageRenderedListener onPageRenderedListener = 
+			new PageRenderer.OnPageRenderedListener() {
+		@Override
+		public void onPageRenderedListener(Page renderedPage) {
+			if (renderedPage != page || canvas == null)
+				return;
+			mRectF.set(0, 0, canvas.getWidth(), canvas.getHeight());
+			tileCache.draw(canvas, page, mRectF);
+			invalidate();
+		}
+	};
+
+	/**
+	 * Draw part of the page into the backing bitmap 
+	 * @param screenRect The area to draw in screen coordinates 
+	 */
+	protected void drawPage(RectF screenRect) {
+		tileCache.draw(canvas, page, screenRect);
+	}
+
+	/**
+	 * Call this after the page content changed. Re-renders the cached tiles 
+	 * and the backing bitmap.
+	 */
+	protected void pageChanged() {
+		renderer.cancel();
+		tileCache.invalidate(page);
+		drawPage();
+	}
+
+	/**
+	 * Call this after the page content changed in a part of the page. Only 
+	 * the affected area of the cached tiles is re-rendered.
+	 * @param screenRect The changed area in screen coordinates 
+	 */
+	protected void pageChanged(RectF screenRect) {
+		boolean pending = renderer.cancel();
+		tileCache.invalidate(page, screenRect);
+		drawPage(screenRect);
+		if (pending)
+			drawPage();
+	}
+	
 	public void clear() {
 		graphicsListener.onPageClearListener(page);
-		page.draw(canvas);
+		drawPage();
 		invalidate();
 	}
 	
@@ -659,9 +762,68 @@ public class HandwriterView
 		}
 		bitmap = newBitmap;
 		canvas = newCanvas;
+		if (previewBitmap != null)
+			previewBitmap.recycle();
+		previewBitmap = Bitmap.createBitmap(curW, curH, Bitmap.Config.RGB_565);
+		previewCanvas = new Canvas(previewBitmap);
+		tileCache.setScreenSize(curW, curH);
 		setPageAndZoomOut(page);
 	}
 
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		ImageCache.getInstance().setOnImageDecodedListener(onImageDecodedListener);
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		renderer.stop();
+		ImageCache.getInstance().setOnImageDecodedListener(null);
+		super.onDetachedFromWindow();
+	}
+	
+	/**
+	 * Redraw the images that were drawn as placeholder while they were decoded
+	 */
+	private final ImageCache.OnImageDecodedListener onImageDecodedListener = 
+			new ImageCache.OnImageDecodedListener() {
+		@Override
+		public void onImageDecodedListener(File file) {
+			if (page == null || canvas == null)
+				return;
+			for (GraphicsImage image : page.getImages()) {
+				if (!file.equals(image.getFile()))
+					continue;
+				pageChanged(image.getBoundingBox());
+				invalidate(image.getBoundingBoxRoundOut());
+			}
+		}
+	};
+	
+	// the pages whose images are kept decoded: the current page and its neighbours
+	private final LinkedList<Page> decodedPages = new LinkedList<Page>();
+	
+	/**
+	 * Decode the images of the pages before and after the current page in
+	 * the background, and release the images of the pages that are not 
+	 * adjacent any more. Call this after {@link #setPageAndZoomOut(Page)}.
+	 * @param adjacent The pages that are likely to be shown next
+	 */
+	public void setAdjacentPages(Collection<Page> adjacent) {
+		LinkedList<Page> pages = new LinkedList<Page>(adjacent);
+		pages.add(page);
+		for (Page old : decodedPages)
+			if (!pages.contains(old))
+				old.releaseImages();
+		decodedPages.clear();
+		decodedPages.addAll(pages);
+		float scale = page.getTransform().scale;
+		for (Page p : adjacent)
+			if (p != page)
+				p.predecodeImages(scale);
+	}
+
 	@Override 
 	protected void onDraw(Canvas canvas) {
 		if (bitmap == null) return;
@@ -709,7 +871,7 @@ public class HandwriterView
 
 	public boolean eraseStrokesIn(RectF r) {
 		LinkedList<Stroke> toRemove = new LinkedList<Stroke>();
-	    for (Stroke s: page.strokes) {	
+	    for (Stroke s: page.findStrokesIn(r)) {	
 			if (!RectF.intersects(r, s.getBoundingBox())) continue;
 			if (s.intersects(r)) {
 				toRemove.add(s);
@@ -727,7 +889,7 @@ public class HandwriterView
 	
 	public boolean eraseLineArtIn(RectF r) {
 		LinkedList<GraphicsControlpoint> toRemove = new LinkedList<GraphicsControlpoint>();
-	    for (GraphicsControlpoint graphics: page.lineArt) {	
+	    for (GraphicsControlpoint graphics: page.findLineArtIn(r)) {	
 			if (!RectF.intersects(r, graphics.getBoundingBox())) continue;
 			if (graphics.intersects(r)) {
 				toRemove.add(graphics);
@@ -745,7 +907,7 @@ public class HandwriterView
 	
 
 	protected void saveStroke(Stroke s) {
-		if (page.is_readonly) {
+		if (page.isReadonly()) {
 			toastIsReadonly();
 			return;
 		}
@@ -756,7 +918,7 @@ public class HandwriterView
 	}
 	
 	protected void saveGraphics(GraphicsControlpoint graphics) {
-		if (page.is_readonly) {
+		if (page.isReadonly()) {
 			toastIsReadonly();
 			return;
 		}
@@ -766,7 +928,7 @@ public class HandwriterView
 	}
 	
 	protected void removeGraphics(GraphicsControlpoint graphics) {
-		if (page.is_readonly) {
+		if (page.isReadonly()) {
 			toastIsReadonly();
 			return;
 		}
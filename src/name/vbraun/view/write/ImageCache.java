@@ -0,0 +1,247 @@
+package name.vbraun.view.write;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Decoded image files, shared by all pages
+ *
+ * An image file is decoded with a sample size that matches the size on the
+ * screen, so a photo in a thumbnail only takes a few kilobytes. The bitmaps
+ * are kept in least-recently-used order up to a fixed number of bytes. Since
+ * the image files are content-addressed, see {@link BlobStore}, images on
+ * different pages that show the same file share the bitmap.
+ *
+ * The UI thread should not wait for an image to be decoded. It can
+ * {@link #request(File, int)} the image instead, which decodes it in a
+ * background thread and notifies the listener when it is done.
+ *
+ * The bitmaps may still be drawn after they were dropped from the cache,
+ * so they are never recycled.
+ *
+ * @author vbraun
+ *
+ */
+public class ImageCache {
+	private static final String TAG = "ImageCache";
+
+	private static ImageCache instance = null;
+
+	public static synchronized ImageCache getInstance() {
+		if (instance == null)
+			instance = new ImageCache(Runtime.getRuntime().maxMemory() / 8);
+		return instance;
+	}
+
+	public interface OnImageDecodedListener {
+		/**
+		 * Called in the UI thread after a requested image has been decoded
+		 * @param file The image file
+		 */
+		public void onImageDecodedListener(File file);
+	}
+
+	private static final int MAX_SAMPLE_SIZE = 64;
+
+	private final long maxBytes;
+	private long bytes = 0;
+
+	// bitmaps by file path and sample size, the least recently used first
+	private final LinkedHashMap<String, Bitmap> bitmaps = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+
+	// the requests that are waiting to be decoded, and the ones that could not be decoded
+	private final HashSet<String> queued = new HashSet<String>();
+	private final HashSet<String> failed = new HashSet<String>();
+	private Handler decodeHandler = null;
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
+	private OnImageDecodedListener listener = null;
+
+	/**
+	 * @param maxBytes The size of the bitmaps that are kept in memory
+	 */
+	public ImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	private static String key(File file, int sampleSize) {
+		return file.getPath() + "#" + sampleSize;
+	}
+
+	private static int bytes(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * Find a decoded image without decoding it
+	 * @param file The image file
+	 * @param sampleSize The largest acceptable sample size, a power of two
+	 * @return The bitmap with the largest sample size that is not larger, or null
+	 */
+	public synchronized Bitmap get(File file, int sampleSize) {
+		for (int s = sampleSize; s >= 1; s /= 2) {
+			Bitmap bitmap = bitmaps.get(key(file, s));
+			if (bitmap != null)
+				return bitmap;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the decoded image, and decode it if it is not in the cache yet.
+	 * If there is not enough memory the image is decoded with a larger sample
+	 * size.
+	 * @param file The image file
+	 * @param sampleSize The sample size, a power of two
+	 * @return The bitmap or null if the file can not be decoded
+	 */
+	public Bitmap load(File file, int sampleSize) {
+		Bitmap bitmap = get(file, sampleSize);
+		if (bitmap != null)
+			return bitmap;
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		return decodeFile(file, options);
+	}
+
+	/**
+	 * Decode the image file and put it into the cache
+	 * @param file The image file
+	 * @param options The options, afterwards inSampleSize is the sample size that was used
+	 * @return The bitmap or null if the file can not be decoded
+	 */
+	private Bitmap decodeFile(File file, BitmapFactory.Options options) {
+		Bitmap bitmap;
+		try {
+			bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+		} catch (OutOfMemoryError e1) {
+			clear();
+			options.inSampleSize = 8*options.inSampleSize;
+			try {
+				bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+			} catch (OutOfMemoryError e2) {
+				Log.e(TAG, "Not enough memory to load image");
+				return null;
+			}
+		}
+		if (bitmap == null) {
+			Log.e(TAG, "Unable to decode "+file.getName());
+			return null;
+		}
+		put(key(file, options.inSampleSize), bitmap);
+		return bitmap;
+	}
+
+	public synchronized void setOnImageDecodedListener(OnImageDecodedListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Return the decoded image without waiting. If it is not in the cache,
+	 * it is decoded in a background thread and the listener is notified
+	 * when it is ready. In the meantime, a version with a larger sample
+	 * size is returned if there is one.
+	 * @param file The image file
+	 * @param sampleSize The sample size, a power of two
+	 * @return The bitmap, possibly at a lower resolution, or null
+	 */
+	public synchronized Bitmap request(final File file, final int sampleSize) {
+		Bitmap bitmap = get(file, sampleSize);
+		if (bitmap != null)
+			return bitmap;
+		final String key = key(file, sampleSize);
+		if (!failed.contains(key) && queued.add(key)) {
+			if (decodeHandler == null) {
+				HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+				thread.start();
+				decodeHandler = new Handler(thread.getLooper());
+			}
+			decodeHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					decode(key, file, sampleSize);
+				}
+			});
+		}
+		for (int s = 2*sampleSize; s <= MAX_SAMPLE_SIZE; s *= 2) {
+			bitmap = bitmaps.get(key(file, s));
+			if (bitmap != null)
+				return bitmap;
+		}
+		return null;
+	}
+
+	private void decode(String key, final File file, int sampleSize) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		Bitmap bitmap = get(file, sampleSize);
+		if (bitmap == null)
+			bitmap = decodeFile(file, options);
+		synchronized (this) {
+			queued.remove(key);
+			// do not try again if it can not be decoded, or only at a lower resolution.
+			// Check the decoded sample size, the bitmap might already be evicted again.
+			if (bitmap == null || options.inSampleSize != sampleSize)
+				failed.add(key);
+			if (bitmap == null)
+				return;
+		}
+		uiHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				OnImageDecodedListener l;
+				synchronized (ImageCache.this) {
+					l = listener;
+				}
+				if (l != null)
+					l.onImageDecodedListener(file);
+			}
+		});
+	}
+
+	private synchronized void put(String key, Bitmap bitmap) {
+		Bitmap old = bitmaps.put(key, bitmap);
+		if (old != null)
+			bytes -= bytes(old);
+		bytes += bytes(bitmap);
+		Iterator<Map.Entry<String, Bitmap>> iter = bitmaps.entrySet().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			Bitmap eldest = iter.next().getValue();
+			if (eldest == bitmap)
+				break;
+			iter.remove();
+			bytes -= bytes(eldest);
+		}
+	}
+
+	/**
+	 * Drop all decoded versions of the image file
+	 * @param file
+	 */
+	public synchronized void release(File file) {
+		String prefix = file.getPath() + "#";
+		Iterator<Map.Entry<String, Bitmap>> iter = bitmaps.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Bitmap> entry = iter.next();
+			if (!entry.getKey().startsWith(prefix)) continue;
+			bytes -= bytes(entry.getValue());
+			iter.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		bitmaps.clear();
+		bytes = 0;
+		failed.clear();
+	}
+}
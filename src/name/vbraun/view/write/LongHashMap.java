@@ -0,0 +1,115 @@
+package name.vbraun.view.write;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with primitive long keys
+ *
+ * Open addressing with linear probing, so there are no entry objects and
+ * no boxing. The key 0 is reserved to mark empty slots.
+ *
+ * @author vbraun
+ *
+ * @param <V> The value type
+ */
+public class LongHashMap<V> {
+	@SuppressWarnings("unused")
+	private static final String TAG = "LongHashMap";
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	public LongHashMap() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		if (key == 0)
+			return null;
+		for (int i = slot(key); keys[i] != 0; i = (i + 1) & (keys.length - 1))
+			if (keys[i] == key)
+				return (V) values[i];
+		return null;
+	}
+
+	/**
+	 * @param key A non-zero key
+	 * @param value
+	 */
+	public void put(long key, V value) {
+		if (key == 0)
+			throw new IllegalArgumentException("The key must not be zero");
+		int i = slot(key);
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & (keys.length - 1);
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			grow();
+	}
+
+	public void remove(long key) {
+		if (key == 0)
+			return;
+		int mask = keys.length - 1;
+		int i = slot(key);
+		while (keys[i] != key) {
+			if (keys[i] == 0)
+				return;
+			i = (i + 1) & mask;
+		}
+		// shift the following entries back so that no probe sequence is broken
+		int gap = i;
+		for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = 0;
+		values[gap] = null;
+		size--;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(2 * oldKeys.length);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != 0)
+				put(oldKeys[i], (V) oldValues[i]);
+	}
+}
@@ -0,0 +1,120 @@
+package name.vbraun.view.write;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A DataInputStream that reads from a memory-mapped file
+ *
+ * Besides the usual stream methods, you can get a view of the next bytes
+ * with {@link #slice(int)} and decode them without copying. This is how
+ * {@link StrokeBlock} reads the sample points.
+ *
+ * @author vbraun
+ *
+ */
+public class MappedDataInputStream extends DataInputStream {
+	@SuppressWarnings("unused")
+	private static final String TAG = "MappedDataInputStream";
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			if (!buffer.hasRemaining())
+				return -1;
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.min(n, buffer.remaining());
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	private final ByteBuffer buffer;
+
+	public MappedDataInputStream(ByteBuffer buffer) {
+		super(new ByteBufferInputStream(buffer));
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Map the whole file into memory. The mapping stays valid after the file
+	 * is closed.
+	 * @param file The file to read
+	 * @return A new stream reading the file
+	 * @throws IOException
+	 */
+	public static MappedDataInputStream map(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			return new MappedDataInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * @return The current position in the file
+	 */
+	public int position() {
+		return buffer.position();
+	}
+
+	/**
+	 * Continue reading at the given position in the file
+	 * @param position
+	 * @throws IOException
+	 */
+	public void seek(int position) throws IOException {
+		if (position < 0 || position > buffer.limit())
+			throw new EOFException();
+		buffer.position(position);
+	}
+
+	/**
+	 * Return a view of the next bytes and advance the stream past them
+	 * @param length The number of bytes
+	 * @return A new ByteBuffer (in big-endian byte order)
+	 * @throws IOException
+	 */
+	public ByteBuffer slice(int length) throws IOException {
+		if (length < 0 || buffer.remaining() < length)
+			throw new EOFException();
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+}
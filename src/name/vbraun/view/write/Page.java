@@ -1,12 +1,16 @@
 package name.vbraun.view.write;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
 
@@ -36,10 +40,10 @@ public class Page {
 	
 	// persistent data
 	protected UUID uuid;  // unique identifier
-	public final LinkedList<GraphicsImage> images = new LinkedList<GraphicsImage>();
-	public final LinkedList<Stroke> strokes = new LinkedList<Stroke>();
+	private final LinkedList<GraphicsImage> images = new LinkedList<GraphicsImage>();
+	private final LinkedList<Stroke> strokes = new LinkedList<Stroke>();
 	// lineArt contains straight lines, arrows, etc.
-	public final LinkedList<GraphicsLine> lineArt = new LinkedList<GraphicsLine>();
+	private final LinkedList<GraphicsLine> lineArt = new LinkedList<GraphicsLine>();
 	public final TagManager.TagSet tags;
 	protected float aspect_ratio = AspectRatio.Table[0].ratio;
 	protected boolean is_readonly = false;
@@ -51,7 +55,49 @@ public class Page {
 	
 	protected boolean modified = false;
 
+	// the sample points of all strokes
+	private StrokeStore strokeStore = new StrokeStore();
+
+	// lazy loading: the images, strokes, and line art are only read from 
+	// contentFile when they are needed, and may be unloaded again by the cache
+	private boolean contentLoaded = true;
+	private File contentFile = null;
+	private File contentDir = null;
+	private PageCache contentCache = null;
+	private int contentVersion;
+	private int imagesOffset = -1;
+	private int strokesOffset = -1;
+	private boolean contentEmpty;
+	// the content file could not be read, so the page must not be saved
+	private boolean contentError = false;
+	private int contentStrokes;
+	private RectF contentBounds = null;
+	private final LinkedList<String> contentBlobs = new LinkedList<String>();
+	// the changes since the last save or journal as PageDelta records, or 
+	// null if the page has to be saved in full
+	private LinkedList<byte[]> deltas = null;
+	
+	// identifies the saved version of the page that the deltas apply to
+	private int generation = 0;
+	private static final Random random = new Random();
+	
+	// counts the changes in this session, for the modification stamp
+	private int changes = 0;
+
+	// saved pages are kept in memory as the undo history may refer to their graphics
+	private boolean pinned = false;
+
+	// spatial index of the graphics objects, in page coordinates
+	private final GraphicsIndex<GraphicsImage> imageIndex = new GraphicsIndex<GraphicsImage>();
+	private final GraphicsIndex<Stroke> strokeIndex = new GraphicsIndex<Stroke>();
+	private final GraphicsIndex<GraphicsLine> lineArtIndex = new GraphicsIndex<GraphicsLine>();
+	private final LongHashMap<Graphics> graphicsById = new LongHashMap<Graphics>();
+
 	private final RectF mRectF = new RectF();
+	private final RectF mPageRectF = new RectF();
+	private final ArrayList<GraphicsImage> mImages = new ArrayList<GraphicsImage>();
+	private final ArrayList<Stroke> mStrokes = new ArrayList<Stroke>();
+	private final ArrayList<GraphicsLine> mLineArt = new ArrayList<GraphicsLine>();
 	
 	public TagSet getTags() {
 		return tags;
@@ -61,14 +107,66 @@ public class Page {
 		return uuid;
 	}
 	
-	public LinkedList<UUID> getBlobUUIDs() {
-		LinkedList<UUID> blobs = new LinkedList<UUID>();
+	/**
+	 * @return A copy of the list of images, loading the content if necessary
+	 */
+	public LinkedList<GraphicsImage> getImages() {
+		LinkedList<GraphicsImage> result;
+		synchronized (this) {
+			loadContent();
+			result = new LinkedList<GraphicsImage>(images);
+		}
+		touchCache();
+		return result;
+	}
+	
+	/**
+	 * @return A copy of the list of strokes, loading the content if necessary
+	 */
+	public LinkedList<Stroke> getStrokes() {
+		LinkedList<Stroke> result;
+		synchronized (this) {
+			loadContent();
+			result = new LinkedList<Stroke>(strokes);
+		}
+		touchCache();
+		return result;
+	}
+	
+	/**
+	 * @return A copy of the list of line art, loading the content if necessary
+	 */
+	public LinkedList<GraphicsLine> getLineArt() {
+		LinkedList<GraphicsLine> result;
+		synchronized (this) {
+			loadContent();
+			result = new LinkedList<GraphicsLine>(lineArt);
+		}
+		touchCache();
+		return result;
+	}
+	
+	/**
+	 * @return The names of the image files in the book directory, one for each image
+	 */
+	public synchronized LinkedList<String> getBlobNames() {
+		LinkedList<String> blobs = new LinkedList<String>();
+		if (!contentLoaded || contentError) {
+			blobs.addAll(contentBlobs);
+			return blobs;
+		}
 		for (GraphicsImage image : images)
-			blobs.add(image.getUuid());
+			if (image.getFile() != null)
+				blobs.add(image.getFile().getName());
 		return blobs;
 	}
 	
 	public boolean isEmpty() {
+		synchronized (this) {
+			if (!contentLoaded && !contentEmpty || contentError)
+				return false;
+		}
+		ensureLoaded();
 		return strokes.isEmpty() && lineArt.isEmpty() && images.isEmpty();
 	}
 	
@@ -76,18 +174,87 @@ public class Page {
 	 *  @return A RectF or null if the page is empty.
 	 */
 	public RectF getLastStrokeRect() {
+		ensureLoaded();
 		if (strokes.isEmpty()) 
 			return null;
 		return strokes.getLast().getEnvelopingRect();
 	}
 	
+	/**
+	 * The number of strokes, without loading the page content
+	 * @return The number of strokes
+	 */
+	public synchronized int getStrokeCount() {
+		if (!contentLoaded)
+			return contentStrokes;
+		return strokes.size();
+	}
+	
+	/**
+	 * The smallest rectangle containing all graphics objects, without loading 
+	 * the page content if possible
+	 * @return A RectF in page coordinates or null if it is not known
+	 */
+	public synchronized RectF getContentBounds() {
+		if (!contentLoaded)
+			return contentBounds == null ? null : new RectF(contentBounds);
+		return computeContentBounds();
+	}
+	
+	private RectF computeContentBounds() {
+		RectF bounds = new RectF();
+		RectF box = new RectF();
+		for (GraphicsImage image : images) {
+			image.computePageBoundingBox(box);
+			bounds.union(box);
+		}
+		for (Stroke s : strokes) {
+			s.computePageBoundingBox(box);
+			bounds.union(box);
+		}
+		for (GraphicsLine line : lineArt) {
+			line.computePageBoundingBox(box);
+			bounds.union(box);
+		}
+		return bounds;
+	}
+	
+	/**
+	 * Mark the page as modified so that it will be saved in full
+	 */
 	public void touch() {
+		changed();
+		deltas = null;
+	}
+	
+	private void changed() {
 		modified = true;
+		changes++;
+	}
+	
+	/**
+	 * Whether the next change can be journaled, that is, all changes since
+	 * the last save were journaled
+	 */
+	private boolean journalChange() {
+		if (contentError)
+			return false;
+		if (!modified)
+			deltas = new LinkedList<byte[]>();
+		return deltas != null;
 	}
 	
 	public boolean isModified() {
 		return modified;
 	}
+	
+	/**
+	 * Whether the content file could not be read. Such a page is shown empty 
+	 * and read-only, and it is never saved so that the page file is kept.
+	 */
+	public synchronized boolean hasContentError() {
+		return contentError;
+	}
 
 	public float getAspectRatio() {
 		return aspect_ratio;
@@ -98,50 +265,42 @@ public class Page {
 	}
 	
 	public boolean isReadonly() {
-		return is_readonly;
+		return is_readonly || contentError;
 	}
 	
 	public void setReadonly(boolean ro) {
 		is_readonly = ro;
-		modified = true;
+		touch();
 	}
 	
 	public void setPaperType(Paper.Type type) {
 		paper_type = type;
-		modified = true;
+		touch();
 		background.setPaperType(paper_type);
 	}
 	
 	public void setAspectRatio(float aspect) {
 		aspect_ratio = aspect;
-		modified = true;
+		touch();
 		background.setAspectRatio(aspect_ratio);
 	}
 	
-	protected void setTransform(float dx, float dy, float s) {
+	/*
+	 * All graphics objects on the page share the transformation object, and
+	 * pick up the change the next time they are drawn or hit-tested. So the
+	 * setTransform(...) methods take constant time.
+	 */
+	
+	protected synchronized void setTransform(float dx, float dy, float s) {
 		transformation.offset_x = dx;
 		transformation.offset_y = dy;
 		transformation.scale = s;
-		setTransformApply();
 	}
 	
-	protected void setTransform(Transformation newTrans) {
+	protected synchronized void setTransform(Transformation newTrans) {
 		transformation.offset_x = newTrans.offset_x;
 		transformation.offset_y = newTrans.offset_y;
 		transformation.scale = newTrans.scale;
-		setTransformApply();
-	}
-		
-	/**
-	 * the common code of the setTransform(...) methods
-	 */
-	private void setTransformApply() { 
-	    for (Stroke stroke : strokes)
-	    	stroke.setTransform(transformation);
-	    for (GraphicsControlpoint line : lineArt)
-	    	line.setTransform(transformation);
-	    for (GraphicsImage image : images)
-	    	image.setTransform(transformation);
 	}
 
 	// set transform but clamp the offset such that the page stays visible
@@ -165,36 +324,176 @@ public class Page {
 	}
 	
 	public void addStroke(Stroke s) {
+		ensureLoaded();
 		strokes.add(s);
+		strokeStore.pack(s);
 		s.setTransform(getTransform());
-		modified = true;
+		strokeIndex.add(s);
+		graphicsById.put(s.id, s);
+		if (journalChange())
+			deltas.add(PageDelta.addStrokes(Collections.singletonList(s)));
+		changed();
 	}
 	
 	public void removeStroke(Stroke s) {
-		strokes.remove(s);
-		modified = true;
+		ensureLoaded();
+		removeStrokes(Collections.singletonList(s));
+	}
+
+	public void addStrokes(Collection<Stroke> toAdd) {
+		ensureLoaded();
+		for (Stroke s : toAdd) {
+			strokes.add(s);
+			strokeStore.pack(s);
+			s.setTransform(getTransform());
+			strokeIndex.add(s);
+			graphicsById.put(s.id, s);
+		}
+		if (journalChange())
+			deltas.add(PageDelta.addStrokes(toAdd));
+		changed();
+	}
+	
+	public void removeStrokes(Collection<Stroke> toRemove) {
+		ensureLoaded();
+		// only journal the strokes that were on the page, replaying the journal fails otherwise
+		LinkedList<Stroke> removed = new LinkedList<Stroke>();
+		for (Stroke s : toRemove) {
+			if (!strokes.remove(s))
+				continue;
+			strokeIndex.remove(s);
+			graphicsById.remove(s.id);
+			removed.add(s);
+		}
+		if (removed.isEmpty())
+			return;
+		if (journalChange())
+			deltas.add(PageDelta.removeStrokes(removed));
+		changed();
 	}
 
 	public void addLine(GraphicsLine line) {
+		ensureLoaded();
 		lineArt.add(line);
 		line.setTransform(getTransform());
-		modified = true;
+		lineArtIndex.add(line);
+		graphicsById.put(line.id, line);
+		if (journalChange())
+			deltas.add(PageDelta.addLine(line));
+		changed();
 	}
 	
 	public void removeLine(GraphicsLine line) {
-		lineArt.remove(line);
-		modified = true;
+		ensureLoaded();
+		if (!lineArt.remove(line))
+			return;
+		lineArtIndex.remove(line);
+		graphicsById.remove(line.id);
+		if (journalChange())
+			deltas.add(PageDelta.removeLine(line));
+		changed();
 	}
 
 	public void addImage(GraphicsImage image) {
+		ensureLoaded();
 		images.add(image);
 		image.setTransform(getTransform());
-		modified = true;
+		imageIndex.add(image);
+		graphicsById.put(image.id, image);
+		touch();
 	}
 	
 	public void removeImage(GraphicsImage image) {
+		ensureLoaded();
 		images.remove(image);
-		modified = true;
+		imageIndex.remove(image);
+		graphicsById.remove(image.id);
+		touch();
+	}
+	
+	/**
+	 * To be called after the control points of a line or image on this page
+	 * have been moved. Updates the spatial index.
+	 * @param graphics
+	 */
+	public void updateGraphics(GraphicsControlpoint graphics) {
+		if (graphics instanceof GraphicsLine)
+			lineArtIndex.update((GraphicsLine)graphics);
+		else if (graphics instanceof GraphicsImage)
+			imageIndex.update((GraphicsImage)graphics);
+	}
+	
+	/**
+	 * Rebuild the spatial index from scratch
+	 */
+	private void rebuildIndex() {
+		graphicsById.clear();
+		imageIndex.clear();
+		for (GraphicsImage image : images) {
+			image.setTransform(transformation);
+			imageIndex.add(image);
+			graphicsById.put(image.id, image);
+		}
+		strokeIndex.clear();
+		for (Stroke s : strokes) {
+			s.setTransform(transformation);
+			strokeIndex.add(s);
+			graphicsById.put(s.id, s);
+		}
+		lineArtIndex.clear();
+		for (GraphicsLine line : lineArt) {
+			line.setTransform(transformation);
+			lineArtIndex.add(line);
+			graphicsById.put(line.id, line);
+		}
+	}
+	
+	/**
+	 * Find a graphics object on this page
+	 * @param id The id of a stroke, line, or image
+	 * @return The graphics object or null if there is none with that id
+	 */
+	public Graphics findGraphics(long id) {
+		ensureLoaded();
+		return graphicsById.get(id);
+	}
+	
+	/**
+	 * Convert a screen rectangle to page coordinates, enlarged by one pixel
+	 * to account for antialiasing 
+	 */
+	private RectF screenToPageRect(RectF r_screen, RectF r_page) {
+		final Transformation t = transformation;
+		r_page.set(t.inverseX(r_screen.left), t.inverseY(r_screen.top),
+				   t.inverseX(r_screen.right), t.inverseY(r_screen.bottom));
+		r_page.sort();
+		float extra = -1 / t.scale;
+		r_page.inset(extra, extra);
+		return r_page;
+	}
+	
+	/**
+	 * Find the strokes whose bounding box intersects the given rectangle
+	 * @param r_screen A rectangle in screen coordinates
+	 * @return The strokes, in the order in which they are drawn
+	 */
+	public LinkedList<Stroke> findStrokesIn(RectF r_screen) {
+		ensureLoaded();
+		LinkedList<Stroke> result = new LinkedList<Stroke>();
+		strokeIndex.find(screenToPageRect(r_screen, mPageRectF), result);
+		return result;
+	}
+
+	/**
+	 * Find the line art whose bounding box intersects the given rectangle
+	 * @param r_screen A rectangle in screen coordinates
+	 * @return The lines, in the order in which they are drawn
+	 */
+	public LinkedList<GraphicsLine> findLineArtIn(RectF r_screen) {
+		ensureLoaded();
+		LinkedList<GraphicsLine> result = new LinkedList<GraphicsLine>();
+		lineArtIndex.find(screenToPageRect(r_screen, mPageRectF), result);
+		return result;
 	}
 
 	public void draw(Canvas canvas, RectF bounding_box) {
@@ -202,6 +501,17 @@ public class Page {
 	}
 	
 	public void draw(Canvas canvas, RectF bounding_box, boolean drawBackgroundLines) {
+		synchronized (this) {
+			loadContent();
+			drawContent(canvas, bounding_box, drawBackgroundLines);
+		}
+		touchCache();
+	}
+	
+	/**
+	 * Implementation of draw. Must be called with the page lock held.
+	 */
+	private void drawContent(Canvas canvas, RectF bounding_box, boolean drawBackgroundLines) {
 		canvas.save();
 		canvas.clipRect(bounding_box);
 		if (drawBackgroundLines)
@@ -209,25 +519,121 @@ public class Page {
 		else
 			background.drawEmptyBackground(canvas, bounding_box, transformation);
 		backgroundText.draw(canvas, bounding_box);
-		for (GraphicsImage graphics: images) {
+		screenToPageRect(bounding_box, mPageRectF);
+		for (GraphicsImage graphics: visible(images, imageIndex, mImages)) {
 		   	if (!canvas.quickReject(graphics.getBoundingBox(), Canvas.EdgeType.AA))
 		   		graphics.draw(canvas, bounding_box);
 	    }
-		for (Stroke s: strokes) {
+		for (Stroke s: visible(strokes, strokeIndex, mStrokes)) {
 		   	if (!canvas.quickReject(s.getBoundingBox(), Canvas.EdgeType.AA))
 		   		s.draw(canvas, bounding_box);
 	    }
-		for (GraphicsControlpoint graphics: lineArt) {
+		for (GraphicsControlpoint graphics: visible(lineArt, lineArtIndex, mLineArt)) {
 		   	if (!canvas.quickReject(graphics.getBoundingBox(), Canvas.EdgeType.AA))
 		   		graphics.draw(canvas, bounding_box);
 	    }
+		mImages.clear();
+		mStrokes.clear();
+		mLineArt.clear();
+		canvas.restore();
+	}
+	
+	/**
+	 * The graphics objects that might be visible in mPageRectF
+	 * @param all All graphics objects of the given type
+	 * @param index The spatial index for the graphics objects
+	 * @param buffer Temporary storage for the result
+	 * @return Either all or buffer
+	 */
+	private <T extends Graphics> Collection<T> visible(LinkedList<T> all, GraphicsIndex<T> index, ArrayList<T> buffer) {
+		if (index.covers(mPageRectF))
+			return all;
+		buffer.clear();
+		index.find(mPageRectF, buffer);
+		return buffer;
+	}
+	
+	/**
+	 * The drawing state of a part of the page, for rendering in a background thread.
+	 */
+	public static class Snapshot {
+		private final Transformation transformation;
+		private final Background background;
+		private final ArrayList<Graphics> graphics = new ArrayList<Graphics>();
+		private volatile boolean cancelled = false;
+		
+		private Snapshot(Page page) {
+			transformation = new Transformation(page.transformation);
+			background = new Background(page.background);
+		}
+		
+		public Transformation getTransform() {
+			return transformation;
+		}
+		
+		public void cancel() {
+			cancelled = true;
+		}
+		
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+	
+	/**
+	 * Take a snapshot of everything that is needed to draw the given area 
+	 * with the current transformation. Must be called from the UI thread. 
+	 * @param r_screen A rectangle in screen coordinates
+	 * @return A snapshot for drawSnapshot()
+	 */
+	public Snapshot snapshot(RectF r_screen) {
+		Snapshot snapshot;
+		synchronized (this) {
+			loadContent();
+			snapshot = new Snapshot(this);
+			screenToPageRect(r_screen, mPageRectF);
+			snapshot.graphics.addAll(visible(images, imageIndex, mImages));
+			snapshot.graphics.addAll(visible(strokes, strokeIndex, mStrokes));
+			snapshot.graphics.addAll(visible(lineArt, lineArtIndex, mLineArt));
+			mImages.clear();
+			mStrokes.clear();
+			mLineArt.clear();
+		}
+		touchCache();
+		return snapshot;
+	}
+	
+	/**
+	 * Draw a snapshot of the page. This can be called from any thread. The
+	 * page is only locked while drawing an individual graphics object, so the
+	 * UI thread is never blocked for long. 
+	 * @param canvas The canvas to draw on
+	 * @param bounding_box The area to draw, in screen coordinates
+	 * @param snapshot A snapshot containing the bounding box
+	 * @return Whether the drawing was completed, that is, the snapshot was not cancelled
+	 */
+	public boolean drawSnapshot(Canvas canvas, RectF bounding_box, Snapshot snapshot) {
+		canvas.save();
+		canvas.clipRect(bounding_box);
+		snapshot.background.draw(canvas, bounding_box, snapshot.transformation);
+		synchronized (this) {
+			backgroundText.draw(canvas, bounding_box);
+		}
+		for (Graphics graphics : snapshot.graphics) {
+			if (snapshot.cancelled)
+				break;
+			synchronized (this) {
+				if (!canvas.quickReject(graphics.getBoundingBox(), Canvas.EdgeType.AA))
+					graphics.draw(canvas, bounding_box);
+			}
+		}
 		canvas.restore();
+		return !snapshot.cancelled;
 	}
 	
 	public Stroke findStrokeAt(float x, float y, float radius) {
-	    ListIterator<Stroke> siter = strokes.listIterator();
-		while(siter.hasNext()) {	
-			Stroke s = siter.next();	    	
+		mRectF.set(x, y, x, y);
+		for (Stroke s : findStrokesIn(mRectF)) {
 			if (!s.getBoundingBox().contains(x,y)) continue;
 			if (s.distance(x,y) < radius)
 				return s;
@@ -246,36 +652,275 @@ public class Page {
 	
 	
 	public void writeToStream(DataOutputStream out) throws IOException {
-		out.writeInt(6);  // protocol version number
+		encode().writeTo(out);
+	}
+	
+	/**
+	 * A serialized page whose stroke block is not compressed yet
+	 */
+	public static class Encoding {
+		private final byte[] head;
+		private final StrokeBlock strokes;
+		private final byte[] tail;
+		
+		private Encoding(byte[] head, StrokeBlock strokes, byte[] tail) {
+			this.head = head;
+			this.strokes = strokes;
+			this.tail = tail;
+		}
+		
+		/**
+		 * Write the page file contents. This does not touch the page, so it 
+		 * can be called from any thread.
+		 * @param out
+		 * @throws IOException
+		 */
+		public void writeTo(DataOutputStream out) throws IOException {
+			out.write(head);
+			strokes.writeTo(out);
+			out.write(tail);
+		}
+	}
+	
+	/**
+	 * Serialize the page except for compressing the sample points, which 
+	 * takes most of the time. The result does not change with the page, so 
+	 * the rest can be done in a background thread.
+	 * @return The page data to be written with {@link Encoding#writeTo(DataOutputStream)}
+	 * @throws IOException
+	 */
+	public Encoding encode() throws IOException {
+		ensureLoaded();
+		if (hasContentError())
+			throw new IOException("Page content could not be read: "+uuid);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(8);  // protocol version number
 		out.writeUTF(uuid.toString());
 		tags.write_to_stream(out);
 		out.writeInt(paper_type.ordinal());
 		
+		// remember where the content starts for the page table
+		contentVersion = 8;
+		imagesOffset = out.size();
 		out.writeInt(images.size());
 		for (GraphicsControlpoint img : images)
 			img.writeToStream(out);
 		
-		out.writeInt(0); // reserved2
+		out.writeInt(generation);
 		out.writeBoolean(is_readonly);
 		out.writeFloat(aspect_ratio);
 		
-		out.writeInt(strokes.size());
-		for (Stroke stroke : strokes)
-			stroke.writeToStream(out);
+		strokesOffset = out.size();
+		byte[] head = bytes.toByteArray();
+		StrokeBlock block = StrokeBlock.encode(strokes);
+		bytes.reset();
 		
 		out.writeInt(lineArt.size());
 		for (GraphicsControlpoint line : lineArt)
 			line.writeToStream(out);
 		
+		out.writeInt(images.size() + strokes.size() + lineArt.size());
+		for (Graphics graphics : images)
+			out.writeLong(graphics.id);
+		for (Graphics graphics : strokes)
+			out.writeLong(graphics.id);
+		for (Graphics graphics : lineArt)
+			out.writeLong(graphics.id);
+		
 		out.writeInt(0); // reserved
 		out.writeInt(0); // number of text boxes
+		return new Encoding(head, block, bytes.toByteArray());
 	}
 	
 	/**
 	 * To be called after the page has been saved to the internal storage (but NOT: anywhere else like backups)
 	 */
-	public void markAsSaved() {
+	public synchronized void markAsSaved() {
+		if (modified && !contentError) {
+			pinned = true;
+			compactStrokes();
+		}
 		modified = false;
+		deltas = null;
+	}
+	
+	/**
+	 * Copy the strokes into a new store if most of the old one is taken 
+	 * by removed strokes. Removed strokes keep the old store, they are 
+	 * copied again if they are added back. Must be called with the page
+	 * lock held, which the background rendering takes for each stroke.
+	 */
+	private void compactStrokes() {
+		if (!contentLoaded)
+			return;
+		if (!strokeStore.needsCompaction(strokes))
+			return;
+		Log.d(TAG, "Compacting the strokes of page "+uuid);
+		strokeStore = new StrokeStore();
+		for (Stroke s : strokes)
+			strokeStore.pack(s);
+	}
+	
+	/**
+	 * The changes since the page was last saved or journaled, as PageDelta records
+	 * @return A new list or null if the page needs to be saved in full
+	 */
+	public LinkedList<byte[]> getDeltas() {
+		if (!modified)
+			return new LinkedList<byte[]>();
+		if (deltas == null)
+			return null;
+		return new LinkedList<byte[]>(deltas);
+	}
+	
+	/**
+	 * To be called after the deltas have been written to the journal. The
+	 * page stays modified as the page file is outdated.
+	 */
+	public void markAsJournaled() {
+		if (deltas != null)
+			deltas.clear();
+	}
+	
+	/**
+	 * The generation is saved in the page file and identifies the version 
+	 * of the page that the journaled deltas apply to.
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Start a new generation, to be called before the page is saved in full
+	 */
+	public void newGeneration() {
+		generation = random.nextInt();
+	}
+	
+	/**
+	 * Identifies the version of the page content. An unmodified page has the 
+	 * generation of its page file as stamp, which is the same in the next 
+	 * session. The stamp of a modified page changes with every change and is 
+	 * only meaningful in this session.
+	 * @return The modification stamp
+	 */
+	public long getModificationStamp() {
+		long stamp = generation & 0xffffffffL;
+		if (modified)
+			stamp |= (long)(changes + 1) << 32;
+		return stamp;
+	}
+	
+	/**
+	 * Make sure that the images, strokes, and line art are in memory. Must
+	 * not be called while holding the page lock.
+	 */
+	public void ensureLoaded() {
+		synchronized (this) {
+			loadContent();
+		}
+		touchCache();
+	}
+	
+	/**
+	 * Register the page with the cache after its content was used, so that
+	 * the cache can unload other pages. Must not be called while holding the 
+	 * page lock. All access to the content goes through here, otherwise 
+	 * pages would be loaded but never unloaded.
+	 */
+	private void touchCache() {
+		PageCache cache;
+		synchronized (this) {
+			cache = contentCache;
+		}
+		if (cache != null)
+			cache.touch(this);
+	}
+	
+	/**
+	 * Read the content of a lazily loaded page. Must be called with the page lock held.
+	 */
+	private void loadContent() {
+		if (contentLoaded) 
+			return;
+		contentLoaded = true;
+		MappedDataInputStream in = null;
+		try {
+			in = MappedDataInputStream.map(contentFile);
+			if (imagesOffset >= 0) {
+				in.seek(imagesOffset);
+				readImages(in, contentDir);
+			}
+			in.seek(strokesOffset);
+			readStrokesAndLineArt(in, contentVersion);
+		} catch (IOException e) {
+			Log.e(TAG, "Error loading page content: "+e.getMessage());
+			// never save the partial content over the page file
+			images.clear();
+			strokes.clear();
+			lineArt.clear();
+			strokeStore = new StrokeStore();
+			contentError = true;
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) {}
+		}
+		rebuildIndex();
+	}
+	
+	/**
+	 * Drop the decoded images from memory, for example because the page is 
+	 * not shown any more. They are decoded again when they are drawn.
+	 */
+	public synchronized void releaseImages() {
+		for (GraphicsImage image : images)
+			image.releaseBitmap();
+	}
+	
+	/**
+	 * Decode the images in the background, for example because the page is 
+	 * likely to be shown next.
+	 * @param scale The scale of the page transformation they will be drawn with
+	 */
+	public void predecodeImages(float scale) {
+		ensureLoaded();
+		synchronized (this) {
+			for (GraphicsImage image : images)
+				image.predecode(scale);
+		}
+	}
+	
+	/**
+	 * Drop the content of a lazily loaded page from memory, it will be read again
+	 * when it is needed. Pages that were changed since they were loaded are kept.
+	 * @return Whether the content is not in memory any more
+	 */
+	protected synchronized boolean unloadContent() {
+		if (!contentLoaded)
+			return true;
+		if (contentFile == null || modified || pinned)
+			return false;
+		if (contentError) {
+			// keep the summary from the header, and try to read the file again next time
+			contentError = false;
+			contentLoaded = false;
+			return true;
+		}
+		contentStrokes = strokes.size();
+		contentEmpty = strokes.isEmpty() && lineArt.isEmpty() && images.isEmpty();
+		contentBounds = computeContentBounds();
+		contentBlobs.clear();
+		contentBlobs.addAll(getBlobNames());
+		releaseImages();
+		images.clear();
+		strokes.clear();
+		lineArt.clear();
+		strokeStore = new StrokeStore();
+		rebuildIndex();
+		contentLoaded = false;
+		return true;
 	}
 	
 	public Page(TagManager tagMgr) {
@@ -305,12 +950,13 @@ public class Page {
 	public Page(Page template, File dir) {
 		tags = template.tags.copy();
 		initPageStyle(template);
-		for (Stroke stroke: template.strokes) 
-			strokes.add(new Stroke(stroke));
-		for (GraphicsLine line: template.lineArt)
+		for (Stroke stroke: template.getStrokes()) 
+			strokes.add(new Stroke(stroke, strokeStore));
+		for (GraphicsLine line: template.getLineArt())
 			lineArt.add(new GraphicsLine(line));
-		for (GraphicsImage image: template.images)
+		for (GraphicsImage image: template.getImages())
 			images.add(new GraphicsImage(image, dir));
+		rebuildIndex();
 	}
 	
 	/**
@@ -333,8 +979,134 @@ public class Page {
 	
 
 	public Page(DataInputStream in, TagManager tagMgr, File dir) throws IOException {
+		this(in, tagMgr, dir, false);
+	}
+	
+	/**
+	 * Read only the page header (uuid, tags, paper, aspect ratio) from the
+	 * file. The images, strokes, and line art are read from the file when
+	 * they are first needed. 
+	 * @param file The page file, which must not change while the page is unmodified
+	 * @param tagMgr
+	 * @param dir The directory with the image files
+	 * @param cache The cache that limits the number of loaded pages
+	 * @return A new page
+	 * @throws IOException
+	 */
+	public static Page loadLazily(File file, TagManager tagMgr, File dir, PageCache cache) throws IOException {
+		MappedDataInputStream in = MappedDataInputStream.map(file);
+		try {
+			Page page = new Page(in, tagMgr, dir, true);
+			page.contentFile = file;
+			page.contentDir = dir;
+			page.contentCache = cache;
+			return page;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Whether {@link #writeHeader(DataOutputStream)} can be used, that is,
+	 * the page has been read from or written to a file.
+	 */
+	public synchronized boolean hasHeader() {
+		return strokesOffset >= 0;
+	}
+	
+	/**
+	 * Write the page header (uuid, tags, paper, aspect ratio, and a summary of the
+	 * content) for the page table of the book. 
+	 * @param out
+	 * @throws IOException
+	 */
+	public synchronized void writeHeader(DataOutputStream out) throws IOException {
+		Assert.assertTrue(hasHeader());
+		out.writeInt(3);  // protocol version number
+		out.writeUTF(uuid.toString());
+		tags.write_to_stream(out);
+		out.writeInt(paper_type.ordinal());
+		out.writeBoolean(is_readonly);
+		out.writeFloat(aspect_ratio);
+		out.writeInt(generation);
+		out.writeInt(contentVersion);
+		out.writeInt(imagesOffset);
+		out.writeInt(strokesOffset);
+		out.writeInt(getStrokeCount());
+		if (contentLoaded)
+			out.writeBoolean(strokes.isEmpty() && lineArt.isEmpty() && images.isEmpty());
+		else
+			out.writeBoolean(contentEmpty);
+		RectF bounds = getContentBounds();
+		out.writeBoolean(bounds != null);
+		if (bounds != null) {
+			out.writeFloat(bounds.left);
+			out.writeFloat(bounds.top);
+			out.writeFloat(bounds.right);
+			out.writeFloat(bounds.bottom);
+		}
+		LinkedList<String> blobs = getBlobNames();
+		out.writeInt(blobs.size());
+		for (String blob : blobs)
+			out.writeUTF(blob);
+	}
+	
+	/**
+	 * Construct a lazily loaded page from its entry in the page table. Does
+	 * not read the page file.
+	 * @param in The page table
+	 * @param tagMgr
+	 * @param file The page file, which must not have changed since the header was written
+	 * @param dir The directory with the image files
+	 * @param cache The cache that limits the number of loaded pages
+	 * @return A new page
+	 * @throws IOException
+	 */
+	public static Page readHeader(DataInputStream in, TagManager tagMgr, File file, File dir, PageCache cache) throws IOException {
+		Page page = new Page(in, tagMgr);
+		page.contentFile = file;
+		page.contentDir = dir;
+		page.contentCache = cache;
+		return page;
+	}
+	
+	/**
+	 * Implementation of readHeader
+	 */
+	private Page(DataInputStream in, TagManager tagMgr) throws IOException {
 		tagManager = tagMgr;
 		int version = in.readInt();
+		if (version != 2 && version != 3)
+			throw new IOException("Unknown page header version!");
+		uuid = UUID.fromString(in.readUTF());
+		tags = tagManager.loadTagSet(in);
+		paper_type = Paper.Type.values()[in.readInt()];
+		is_readonly = in.readBoolean();
+		aspect_ratio = in.readFloat();
+		generation = in.readInt();
+		contentVersion = in.readInt();
+		imagesOffset = in.readInt();
+		strokesOffset = in.readInt();
+		contentStrokes = in.readInt();
+		contentEmpty = in.readBoolean();
+		if (in.readBoolean())
+			contentBounds = new RectF(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+		int nBlobs = in.readInt();
+		for (int i=0; i<nBlobs; i++) {
+			String blob = in.readUTF();
+			if (version == 2)  // image uuid
+				blob = GraphicsImage.getImageFileName(UUID.fromString(blob), GraphicsImage.FileType.FILETYPE_JPG);
+			contentBlobs.add(blob);
+		}
+		background.setAspectRatio(aspect_ratio);
+		background.setPaperType(paper_type);
+		contentLoaded = false;
+	}
+	
+	private Page(DataInputStream in, TagManager tagMgr, File dir, boolean headerOnly) throws IOException {
+		tagManager = tagMgr;
+		MappedDataInputStream mapped = headerOnly ? (MappedDataInputStream) in : null;
+		int version = in.readInt();
 		if (version == 1) {
 			uuid = UUID.randomUUID();
 			tags = tagManager.newTagSet();
@@ -357,52 +1129,126 @@ public class Page {
 			paper_type = Paper.Type.values()[in.readInt()];
 			in.readInt();
 			in.readInt();
-		} else if (version == 6) {
+		} else if (version >= 6 && version <= 8) {
 			uuid = UUID.fromString(in.readUTF());
 			tags = tagManager.loadTagSet(in);
-			paper_type = Paper.Type.values()[in.readInt()];			
-			int nImages= in.readInt();
-			for (int i=0; i<nImages; i++)
-				images.add(new GraphicsImage(in, dir));
-			int dummy = in.readInt();    Assert.assertTrue(dummy == 0);
+			paper_type = Paper.Type.values()[in.readInt()];
+			if (headerOnly)
+				imagesOffset = mapped.position();
+			readImages(in, dir);
+			if (version == 6) {
+				int dummy = in.readInt();    Assert.assertTrue(dummy == 0);
+			} else
+				generation = in.readInt();
 		} else 	
 			throw new IOException("Unknown page version!");
 		is_readonly = in.readBoolean();
 		aspect_ratio = in.readFloat();
+		background.setAspectRatio(aspect_ratio);
+		background.setPaperType(paper_type);
 
-		int nStrokes = in.readInt();
-		for (int i=0; i<nStrokes; i++) {
-			strokes.add(new Stroke(in));
+		if (headerOnly) {
+			contentVersion = version;
+			strokesOffset = mapped.position();
+			for (GraphicsImage image : images)
+				if (image.getFile() != null)
+					contentBlobs.add(image.getFile().getName());
+			// the number of strokes comes first in all versions 
+			contentStrokes = in.readInt();
+			contentEmpty = images.isEmpty() && contentStrokes == 0;
+			images.clear();
+			contentLoaded = false;
+			return;
 		}
+		readStrokesAndLineArt(in, version);
+		rebuildIndex();
+	}
+	
+	private void readImages(DataInputStream in, File dir) throws IOException {
+		int nImages= in.readInt();
+		for (int i=0; i<nImages; i++)
+			images.add(new GraphicsImage(in, dir));
+	}
+	
+	private void readStrokesAndLineArt(DataInputStream in, int version) throws IOException {
+		if (version >= 7)
+			StrokeBlock.read(in, strokeStore, strokes);
+		else
+			StrokeBlock.readLegacy(in, strokeStore, strokes);
 		
 		if (version >= 5) {
 			int nLines = in.readInt();
 			for (int i=0; i<nLines; i++) {
 				lineArt.add(new GraphicsLine(in));
 			}
+			if (version >= 8)
+				readGraphicsIds(in);
 			in.readInt(); // dummy
 			int nText = in.readInt();  // TODO
 		}
-		
-		background.setAspectRatio(aspect_ratio);
-		background.setPaperType(paper_type);
+		if (version < 8)
+			assignLegacyIds();
+	}
+	
+	private void readGraphicsIds(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n != images.size() + strokes.size() + lineArt.size())
+			throw new IOException("Number of graphics ids does not match.");
+		for (Graphics graphics : images)
+			graphics.id = in.readLong();
+		for (Graphics graphics : strokes)
+			graphics.id = in.readLong();
+		for (Graphics graphics : lineArt)
+			graphics.id = in.readLong();
+	}
+	
+	/**
+	 * Older page versions have no graphics ids. Derive them from the page 
+	 * uuid and the position, so they are the same every time the page is loaded.
+	 */
+	private void assignLegacyIds() {
+		long n = 0;
+		for (Graphics graphics : images)
+			graphics.id = legacyId(uuid, n++);
+		for (Graphics graphics : strokes)
+			graphics.id = legacyId(uuid, n++);
+		for (Graphics graphics : lineArt)
+			graphics.id = legacyId(uuid, n++);
+	}
+	
+	protected static long legacyId(UUID uuid, long n) {
+		long h = uuid.getMostSignificantBits() ^ (uuid.getLeastSignificantBits() + n * 0x9E3779B97F4A7C15L);
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h = h ^ (h >>> 31);
+		return h == 0 ? 1 : h;
 	}
 	
+	/**
+	 * Render the page into a new bitmap. Must not be called while holding the page lock.
+	 */
 	public Bitmap renderBitmap(int width, int height, boolean background) {
-		Transformation backup = new Transformation(getTransform());
-		float scale = Math.min(height, width/aspect_ratio);
-		setTransform(0, 0, scale);
-		int actual_width  = (int)Math.rint(scale*aspect_ratio);
-		int actual_height = (int)Math.rint(scale);
-		Bitmap bitmap = Bitmap.createBitmap
-			(actual_width, actual_height, Config.ARGB_8888);
-		Canvas c = new Canvas(bitmap);
-		draw(c, background);
-		setTransform(backup);
+		Bitmap bitmap;
+		synchronized (this) {
+			loadContent();
+			Transformation backup = new Transformation(getTransform());
+			float scale = Math.min(height, width/aspect_ratio);
+			setTransform(0, 0, scale);
+			int actual_width  = (int)Math.rint(scale*aspect_ratio);
+			int actual_height = (int)Math.rint(scale);
+			bitmap = Bitmap.createBitmap
+				(actual_width, actual_height, Config.ARGB_8888);
+			Canvas c = new Canvas(bitmap);
+			mRectF.set(0, 0, actual_width, actual_height);
+			drawContent(c, mRectF, background);
+			setTransform(backup);
+		}
+		touchCache();
 		return bitmap;
 	}
 	
 	public void render(Artist artist) {
+		ensureLoaded();
 		background.render(artist);
 		for (GraphicsImage image: images) {
 		   	image.render(artist);
@@ -0,0 +1,62 @@
+package name.vbraun.view.write;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+/**
+ * Bounds the number of lazily loaded pages whose content is in memory
+ *
+ * Pages register themselves when their content is accessed. If there are
+ * more than the given number of pages, the least recently used ones are
+ * unloaded again. Pages with unsaved changes are skipped, see
+ * {@link Page#unloadContent()}.
+ *
+ * @author vbraun
+ *
+ */
+public class PageCache {
+	private static final String TAG = "PageCache";
+
+	private final int capacity;
+
+	// in access order, the least recently used page first
+	private final LinkedHashMap<Page, Page> resident = new LinkedHashMap<Page, Page>(16, 0.75f, true);
+
+	/**
+	 * @param capacity The number of pages whose content is kept in memory
+	 */
+	public PageCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Mark the page as most recently used and unload the least recently used
+	 * pages if there are too many. Must not be called while holding a page lock.
+	 * @param page A page whose content is loaded
+	 */
+	protected synchronized void touch(Page page) {
+		resident.put(page, page);
+		if (resident.size() <= capacity)
+			return;
+		Iterator<Page> iter = resident.keySet().iterator();
+		while (iter.hasNext() && resident.size() > capacity) {
+			Page lru = iter.next();
+			if (lru == page)
+				continue;
+			if (lru.unloadContent()) {
+				Log.d(TAG, "Unloaded page " + lru.getUUID());
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget about the page, for example because it was deleted
+	 * @param page
+	 */
+	public synchronized void remove(Page page) {
+		resident.remove(page);
+	}
+}
@@ -0,0 +1,124 @@
+package name.vbraun.view.write;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * Incremental changes to a page, for the journal
+ *
+ * Each delta adds strokes or lines at the end of the page or removes them
+ * by id. The deltas must be applied in order to the same version of the
+ * page. Changes to images are not journaled, as the image file can change
+ * after the image was added.
+ *
+ * @author vbraun
+ *
+ */
+public class PageDelta {
+	@SuppressWarnings("unused")
+	private static final String TAG = "PageDelta";
+
+	private static final int ADD_STROKES = 0;
+	private static final int REMOVE_STROKES = 1;
+	private static final int ADD_LINE = 2;
+	private static final int REMOVE_LINE = 3;
+
+	private static DataOutputStream begin(ByteArrayOutputStream bytes, int op) throws IOException {
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(op);
+		return out;
+	}
+
+	protected static byte[] addStrokes(Collection<Stroke> strokes) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = begin(bytes, ADD_STROKES);
+			StrokeBlock.write(out, strokes);
+			for (Stroke s : strokes)
+				out.writeLong(s.id);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	protected static byte[] removeStrokes(Collection<Stroke> strokes) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = begin(bytes, REMOVE_STROKES);
+			out.writeInt(strokes.size());
+			for (Stroke s : strokes)
+				out.writeLong(s.id);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	protected static byte[] addLine(GraphicsLine line) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = begin(bytes, ADD_LINE);
+			line.writeToStream(out);
+			out.writeLong(line.id);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	protected static byte[] removeLine(GraphicsLine line) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			begin(bytes, REMOVE_LINE).writeLong(line.id);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read a delta and apply it to the page
+	 * @param page
+	 * @param in
+	 * @throws IOException If the delta is corrupt or does not match the page
+	 */
+	public static void apply(Page page, DataInputStream in) throws IOException {
+		int op = in.readInt();
+		switch (op) {
+		case ADD_STROKES:
+			LinkedList<Stroke> strokes = new LinkedList<Stroke>();
+			StrokeBlock.read(in, new StrokeStore(), strokes);
+			for (Stroke s : strokes)
+				s.id = in.readLong();
+			page.addStrokes(strokes);
+			break;
+		case REMOVE_STROKES:
+			int n = in.readInt();
+			for (int i = 0; i < n; i++)
+				page.removeStroke(find(page, in.readLong(), Stroke.class));
+			break;
+		case ADD_LINE:
+			GraphicsLine line = new GraphicsLine(in);
+			line.id = in.readLong();
+			page.addLine(line);
+			break;
+		case REMOVE_LINE:
+			page.removeLine(find(page, in.readLong(), GraphicsLine.class));
+			break;
+		default:
+			throw new IOException("Unknown page delta.");
+		}
+	}
+
+	private static <T extends Graphics> T find(Page page, long id, Class<T> type) throws IOException {
+		Graphics graphics = page.findGraphics(id);
+		if (!type.isInstance(graphics))
+			throw new IOException("Page delta does not match the page.");
+		return type.cast(graphics);
+	}
+}
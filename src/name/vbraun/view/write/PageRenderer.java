@@ -0,0 +1,156 @@
+package name.vbraun.view.write;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Render missing page tiles in a background thread
+ *
+ * The UI thread takes a snapshot of the visible part of the page and posts
+ * it to the render thread. The rendered tiles are handed back to the UI
+ * thread, which adds them to the tile cache and notifies the listener. A
+ * newer request cancels the pending one.
+ *
+ * @author vbraun
+ *
+ */
+public class PageRenderer {
+	private static final String TAG = "PageRenderer";
+
+	public interface OnPageRenderedListener {
+		/**
+		 * Called in the UI thread after the requested tiles have been added to the tile cache
+		 * @param page The page that was rendered
+		 */
+		public void onPageRenderedListener(Page page);
+	}
+
+	private final TileCache tileCache;
+	private final OnPageRenderedListener listener;
+	private final Handler uiHandler = new Handler();
+	private HandlerThread thread = null;
+	private Handler renderHandler = null;
+	private Job pending = null;
+
+	public PageRenderer(TileCache tileCache, OnPageRenderedListener listener) {
+		this.tileCache = tileCache;
+		this.listener = listener;
+	}
+
+	private class Job implements Runnable {
+		private final Page page;
+		private final Page.Snapshot snapshot;
+		private final LinkedList<Point> tiles;
+		private final LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+
+		private Job(Page page, Page.Snapshot snapshot, LinkedList<Point> tiles) {
+			this.page = page;
+			this.snapshot = snapshot;
+			this.tiles = tiles;
+		}
+
+		@Override
+		public void run() {
+			Transformation t = snapshot.getTransform();
+			RectF tileRect = new RectF();
+			Canvas canvas = new Canvas();
+			for (Point tile : tiles) {
+				if (snapshot.isCancelled())
+					break;
+				Bitmap bitmap = Bitmap.createBitmap(TileCache.TILE_SIZE, TileCache.TILE_SIZE,
+						Bitmap.Config.RGB_565);
+				bitmaps.add(bitmap);
+				TileCache.tileScreenRect(t, tile.x, tile.y, tileRect);
+				canvas.setBitmap(bitmap);
+				canvas.save();
+				canvas.translate(-tileRect.left, -tileRect.top);
+				page.drawSnapshot(canvas, tileRect, snapshot);
+				canvas.restore();
+			}
+			uiHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					finished(Job.this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Render the missing tiles of the given area in the background. Cancels
+	 * any pending request. Must be called from the UI thread.
+	 * @param page The page (with its current transformation)
+	 * @param screenRect The area to render, in screen coordinates
+	 * @return Whether there was anything to render
+	 */
+	public boolean render(Page page, RectF screenRect) {
+		cancel();
+		LinkedList<Point> tiles = new LinkedList<Point>();
+		if (!tileCache.findMissing(page, screenRect, tiles))
+			return false;
+		Transformation t = page.getTransform();
+		RectF area = new RectF();
+		RectF tileRect = new RectF();
+		for (Point tile : tiles)
+			area.union(TileCache.tileScreenRect(t, tile.x, tile.y, tileRect));
+		pending = new Job(page, page.snapshot(area), tiles);
+		if (thread == null) {
+			thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+			thread.start();
+			renderHandler = new Handler(thread.getLooper());
+		}
+		renderHandler.post(pending);
+		return true;
+	}
+
+	/**
+	 * Cancel the pending request. Must be called from the UI thread.
+	 * @return Whether a request was pending
+	 */
+	public boolean cancel() {
+		if (pending == null)
+			return false;
+		pending.snapshot.cancel();
+		pending = null;
+		return true;
+	}
+
+	/**
+	 * Cancel the pending request and stop the render thread
+	 */
+	public void stop() {
+		cancel();
+		if (thread == null)
+			return;
+		thread.quit();
+		thread = null;
+		renderHandler = null;
+	}
+
+	private void finished(Job job) {
+		Transformation t = job.page.getTransform();
+		boolean valid = !job.snapshot.isCancelled() && t.equals(job.snapshot.getTransform());
+		if (!valid) {
+			Log.d(TAG, "Discarding "+job.bitmaps.size()+" tiles");
+			for (Bitmap bitmap : job.bitmaps)
+				bitmap.recycle();
+			return;
+		}
+		pending = null;
+		Iterator<Point> tiles = job.tiles.iterator();
+		for (Bitmap bitmap : job.bitmaps) {
+			Point tile = tiles.next();
+			tileCache.put(job.page, t.scale, tile.x, tile.y, bitmap);
+		}
+		listener.onPageRenderedListener(job.page);
+	}
+}
@@ -6,7 +6,6 @@ import java.util.ListIterator;
 import java.util.Queue;
 import java.util.Stack;
 import java.util.Vector;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.Math;
@@ -34,13 +33,12 @@ public class Stroke extends Graphics {
 	// line thickness in fraction of the larger dimension of the page
 	public static final float LINE_THICKNESS_SCALE = 1 / 1600f;
 
-	// the actual data
+	// the actual data: N sample points (x, y, pressure) starting at data[offset] 
 	protected int N;
-	protected float[] position_x;
-	protected float[] position_y;
-	protected float[] pressure;
+	protected float[] data;
+	protected int offset;
+	protected StrokeStore store;
 
-	private final Paint mPen = new Paint();
 	protected int pen_thickness = 0;
 	protected int pen_color = Color.BLACK;
 
@@ -70,27 +68,44 @@ public class Stroke extends Graphics {
 			float[] p, int from, int to) {
 		super(pen_type);
 		Assert.assertTrue("Pen type is not actual pen.", pen_type == Tool.FOUNTAINPEN || pen_type == Tool.PENCIL);
-		N = to - from;
-		Assert.assertTrue("Stroke must consist of at least two points", N >= 2);
-		position_x = Arrays.copyOfRange(x, from, to);
-		position_y = Arrays.copyOfRange(y, from, to);
-		pressure = Arrays.copyOfRange(p, from, to);
+		int n = to - from;
+		Assert.assertTrue("Stroke must consist of at least two points", n >= 2);
+		setPoints(Arrays.copyOfRange(x, from, to), Arrays.copyOfRange(y, from, to), 
+				Arrays.copyOfRange(p, from, to), n);
 		setPen(pen_thickness, pen_color);
 		setTransform(transform);
 	}
 	
 	/**
 	 * Copy constructor
+	 * @param stroke The stroke to copy
+	 * @param store The storage for the sample points of the copy
 	 */
-	protected Stroke(final Stroke stroke) {
+	protected Stroke(final Stroke stroke, StrokeStore store) {
 		super(stroke);
-		N = stroke.N;
-		position_x = stroke.position_x.clone();
-		position_y = stroke.position_y.clone();
-		pressure = stroke.pressure.clone();
+		store.allocate(this, stroke.N);
+		System.arraycopy(stroke.data, stroke.offset, data, offset, N * StrokeStore.STRIDE);
 		setPen(stroke.pen_thickness, stroke.pen_color);
 	}	
 
+	/**
+	 * Constructor for strokes whose sample points are filled in by the
+	 * caller, see {@link StrokeBlock}
+	 * 
+	 * @param pen_type
+	 * @param pen_thickness
+	 * @param pen_color
+	 * @param N
+	 *            The number of sample points
+	 * @param store
+	 *            The storage for the sample points
+	 */
+	protected Stroke(Tool pen_type, int pen_thickness, int pen_color, int N, StrokeStore store) {
+		super(pen_type);
+		setPen(pen_thickness, pen_color);
+		store.allocate(this, N);
+	}
+
 	/**
 	 * Create a new Stroke object from raw input data
 	 * 
@@ -120,10 +135,40 @@ public class Stroke extends Graphics {
 	private void setPen(int new_pen_thickness, int new_pen_color) {
 		pen_thickness = new_pen_thickness;
 		pen_color = new_pen_color;
-		mPen.setARGB(Color.alpha(pen_color), Color.red(pen_color), Color.green(pen_color), Color.blue(pen_color));
-		mPen.setAntiAlias(true);
-		mPen.setStrokeCap(Paint.Cap.ROUND);
 		recompute_bounding_box = true;
+		invalidateOutline();
+	}
+
+	/**
+	 * Replace the sample points. The points are written into the current
+	 * range if they fit, as smoothing and simplifying never add points.
+	 * Otherwise they are stored in a new StrokeStore of their own, 
+	 * Page.addStroke() moves them into the page's store.
+	 */
+	private void setPoints(float[] x, float[] y, float[] p, int n) {
+		if (data == null || n > N)
+			StrokeStore.forStroke(n).allocate(this, n);
+		else
+			N = n;
+		invalidateOutline();
+		final float[] d = data;
+		for (int i = 0, j = offset; i < n; i++, j += StrokeStore.STRIDE) {
+			d[j] = x[i];
+			d[j + 1] = y[i];
+			d[j + 2] = p[i];
+		}
+	}
+
+	/**
+	 * Copy one coordinate of all sample points into a new array
+	 * @param k 0 for x, 1 for y, 2 for pressure
+	 */
+	private float[] getCoordinate(int k) {
+		float[] result = new float[N];
+		final float[] d = data;
+		for (int i = 0, j = offset + k; i < N; i++, j += StrokeStore.STRIDE)
+			result[i] = d[j];
+		return result;
 	}
 
 	// static method that exports the pen scaling algorithm
@@ -138,6 +183,7 @@ public class Stroke extends Graphics {
 
 	// this computes the argument to Paint.setStrokeWidth()
 	public float getScaledPenThickness() {
+		syncTransform();
 		return getScaledPenThickness(scale, pen_thickness);
 	}
 
@@ -152,11 +198,12 @@ public class Stroke extends Graphics {
 	 */
 	public RectF getEnvelopingRect() {
 		float x, y, xmin, ymin, xmax, ymax;
-		xmin = xmax = position_x[0];
-		ymin = ymax = position_y[0];
-		for (int i = 1; i < N; i++) {
-			x = position_x[i];
-			y = position_y[i];
+		final float[] d = data;
+		xmin = xmax = d[offset];
+		ymin = ymax = d[offset + 1];
+		for (int i = 1, j = offset + StrokeStore.STRIDE; i < N; i++, j += StrokeStore.STRIDE) {
+			x = d[j];
+			y = d[j + 1];
 			xmin = Math.min(xmin, x);
 			xmax = Math.max(xmax, x);
 			ymin = Math.min(ymin, y);
@@ -168,11 +215,12 @@ public class Stroke extends Graphics {
 	protected void computeBoundingBox() {
 		// Log.d(TAG, "computeBoundingBox, old=" + bBoxFloat);
 		float x0, x1, y0, y1, x, y;
-		x0 = x1 = position_x[0] * scale + offset_x;
-		y0 = y1 = position_y[0] * scale + offset_y;
-		for (int i = 1; i < N; i++) {
-			x = position_x[i] * scale + offset_x;
-			y = position_y[i] * scale + offset_y;
+		final float[] d = data;
+		x0 = x1 = d[offset] * scale + offset_x;
+		y0 = y1 = d[offset + 1] * scale + offset_y;
+		for (int i = 1, j = offset + StrokeStore.STRIDE; i < N; i++, j += StrokeStore.STRIDE) {
+			x = d[j] * scale + offset_x;
+			y = d[j + 1] * scale + offset_y;
 			x0 = Math.min(x0, x);
 			x1 = Math.max(x1, x);
 			y0 = Math.min(y0, y);
@@ -185,40 +233,62 @@ public class Stroke extends Graphics {
 		recompute_bounding_box = false;
 	}
 
+	protected void computePageBoundingBox(RectF box) {
+		float x0, x1, y0, y1, x, y;
+		final float[] d = data;
+		x0 = x1 = d[offset];
+		y0 = y1 = d[offset + 1];
+		for (int i = 1, j = offset + StrokeStore.STRIDE; i < N; i++, j += StrokeStore.STRIDE) {
+			x = d[j];
+			y = d[j + 1];
+			x0 = Math.min(x0, x);
+			x1 = Math.max(x1, x);
+			y0 = Math.min(y0, y);
+			y1 = Math.max(y1, y);
+		}
+		box.set(x0, y0, x1, y1);
+		float extra = -getScaledPenThickness(1f) / 2;
+		box.inset(extra, extra);
+	}
+
 	/**
 	 * Apply the inverse transform screen -> page coordinates. This is only
 	 * useful when creating the stroke from raw pen data.
 	 */
 	private void applyInverseTransform() {
-		float x, y;
-		for (int i = 0; i < N; i++) {
-			x = position_x[i];
-			y = position_y[i];
-			position_x[i] = (x - offset_x) / scale;
-			position_y[i] = (y - offset_y) / scale;
+		syncTransform();
+		final float[] d = data;
+		for (int i = 0, j = offset; i < N; i++, j += StrokeStore.STRIDE) {
+			d[j] = (d[j] - offset_x) / scale;
+			d[j + 1] = (d[j + 1] - offset_y) / scale;
 		}
+		invalidateOutline();
 		recompute_bounding_box = true;
 	}
 
 	public float distance(float x_screen, float y_screen) {
+		syncTransform();
 		float x = (x_screen - offset_x) / scale;
 		float y = (y_screen - offset_y) / scale;
-		float d = Math.abs(x - position_x[0]) + Math.abs(y - position_y[0]);
-		for (int i = 1; i < N; i++) {
-			float d_new = Math.abs(x - position_x[i]) + Math.abs(y - position_y[i]);
+		final float[] data = this.data;
+		float d = Math.abs(x - data[offset]) + Math.abs(y - data[offset + 1]);
+		for (int i = 1, j = offset + StrokeStore.STRIDE; i < N; i++, j += StrokeStore.STRIDE) {
+			float d_new = Math.abs(x - data[j]) + Math.abs(y - data[j + 1]);
 			d = Math.min(d, d_new);
 		}
 		return d * scale;
 	}
 
 	public boolean intersects(RectF r_screen) {
+		syncTransform();
 		// Log.v(TAG,
 		// ""+r_screen.left+" "+r_screen.bottom+" "+r_screen.right+" "+r_screen.top);
 		RectF r = new RectF((r_screen.left - offset_x) / scale, (r_screen.top - offset_y) / scale,
 				(r_screen.right - offset_x) / scale, (r_screen.bottom - offset_y) / scale);
 		// Log.v(TAG, ""+r.left+" "+r.bottom+" "+r.right+" "+r.top);
-		for (int i = 0; i < N; i++)
-			if (r.contains(position_x[i], position_y[i]))
+		final float[] d = data;
+		for (int i = 0, j = offset; i < N; i++, j += StrokeStore.STRIDE)
+			if (r.contains(d[j], d[j + 1]))
 				return true;
 		return false;
 	}
@@ -226,16 +296,15 @@ public class Stroke extends Graphics {
 	public void draw(Canvas c, RectF bounding_box) {
 		// Page.draw already checked the bounding box, we definitely need to
 		// draw
+		syncTransform();
 		if (recompute_bounding_box)
 			computeBoundingBox();
 		// if we are zoomed in use higher-quality graphics
 		final boolean zoom = (scale > 1500f);
 		if (N <= 2 || (tool == Tool.PENCIL && !zoom))
 			drawWithStraightLine(c);
-		else if (tool == Tool.PENCIL)
-			drawPencilWithQuadraticBezier(c);
 		else 
-			drawFountainpenWithCubicBezier(c);
+			drawOutline(c);
 	}
 	
 	/**
@@ -243,6 +312,9 @@ public class Stroke extends Graphics {
 	 */
 	private void drawWithStraightLine(Canvas c) {
 		final float scaled_pen_thickness = getScaledPenThickness();
+		final Paint mPen = store.pen;
+		final float[] d = data;
+		mPen.setColor(pen_color);
 		mPen.setStyle(Paint.Style.STROKE);
 		if (tool == Tool.PENCIL)
 			mPen.setStrokeWidth(scaled_pen_thickness);
@@ -250,14 +322,14 @@ public class Stroke extends Graphics {
 		// c.drawRect(left, top, right, bottom, paint)
 		// note: we offset the first point by 1/10 pixel since android does not
 		// draw lines with start=end
-		x0 = position_x[0] * scale + offset_x + 0.1f;
-		y0 = position_y[0] * scale + offset_y;
-		p0 = pressure[0];
-		for (int i = 1; i < N; i++) {
-			x1 = position_x[i] * scale + offset_x;
-			y1 = position_y[i] * scale + offset_y;
+		x0 = d[offset] * scale + offset_x + 0.1f;
+		y0 = d[offset + 1] * scale + offset_y;
+		p0 = d[offset + 2];
+		for (int i = 1, j = offset + StrokeStore.STRIDE; i < N; i++, j += StrokeStore.STRIDE) {
+			x1 = d[j] * scale + offset_x;
+			y1 = d[j + 1] * scale + offset_y;
 			if (tool == Tool.FOUNTAINPEN) {
-				p1 = pressure[i];
+				p1 = d[j + 2];
 				mPen.setStrokeWidth((p0 + p1) / 2 * scaled_pen_thickness);
 				p0 = p1;
 			}
@@ -267,32 +339,85 @@ public class Stroke extends Graphics {
 		}		
 	}
 
-	private Path path = new Path();
+	// the outline path in page coordinates times outlineScale, or null
+	private Path outline = null;
+	private float outlineScale = 0;
+
+	/**
+	 * The scale at which the outline is computed. Powers of two, so we only
+	 * need to recompute it when the zoom level changes by a large amount.
+	 * The canvas matrix takes care of the remaining factor, which is between
+	 * 0.7 and 1.4.
+	 */
+	private static float outlineScale(float scale) {
+		int exponent = Math.round((float) (Math.log(scale) / Math.log(2)));
+		return (float) Math.pow(2, exponent);
+	}
+	
+	/**
+	 * Discard the cached outline, must be called whenever the sample points
+	 * or the pen change.
+	 */
+	private void invalidateOutline() {
+		outlineScale = 0;
+	}
+	
+	/**
+	 * Draw the cached outline, recomputing it if necessary
+	 */
+	private void drawOutline(Canvas c) {
+		final float s = outlineScale(scale);
+		if (outline == null)
+			outline = new Path();
+		if (outlineScale != s) {
+			outline.rewind();
+			if (tool == Tool.PENCIL)
+				pencilWithQuadraticBezier(outline, s);
+			else
+				fountainpenWithCubicBezier(outline, s);
+			outlineScale = s;
+		}
+		final Paint mPen = store.pen;
+		mPen.setColor(pen_color);
+		if (tool == Tool.PENCIL) {
+			mPen.setStyle(Paint.Style.STROKE);
+			mPen.setStrokeWidth(getScaledPenThickness(s));
+		} else
+			mPen.setStyle(Paint.Style.FILL);
+		final float f = scale / s;
+		c.save();
+		c.translate(offset_x, offset_y);
+		c.scale(f, f);
+		c.drawPath(outline, mPen);
+		c.restore();
+	}
 
 	/**
 	 * Quadratic Bezier curve for constant width
 	 * 
 	 * The trick is to use midpoints as start/stop point of the Bezier, and
 	 * actual data points as the control point.
+	 * 
+	 * @param path The path to add the curve to
+	 * @param s The scale factor from page coordinates to path coordinates
 	 */
-	private void drawPencilWithQuadraticBezier(Canvas c) {
+	private void pencilWithQuadraticBezier(Path path, float s) {
 		Assert.assertTrue(tool == Tool.PENCIL && N >= 3);
-		path.rewind();
-		mPen.setStyle(Paint.Style.STROKE);
-		mPen.setStrokeWidth(getScaledPenThickness());
+		final float[] d = data;
+		final int S = StrokeStore.STRIDE;
 		float x0, x1, x2, x3, y0, y1, y2, y3;
 		
 		// the first actual point is treated as a midpoint
-		x0 = position_x[0] * scale + offset_x + 0.1f;
-		y0 = position_y[0] * scale + offset_y;
+		x0 = d[offset] * s + 0.1f;
+		y0 = d[offset + 1] * s;
 		path.moveTo(x0, y0);
 
-		x1 = position_x[1] * scale + offset_x + 0.1f;
-		y1 = position_y[1] * scale + offset_y;
-		for (int i = 2; i < N-1; i++) {
+		x1 = d[offset + S] * s + 0.1f;
+		y1 = d[offset + S + 1] * s;
+		for (int i = 2, j = offset + 2*S; i < N-1; i++, j += S) {
 			// (x0,y0) and (x2,y2) are midpoints, (x1,y1) and (x3,y3) are actual points 
-			x3 = position_x[i] * scale + offset_x;
-			y3 = position_y[i] * scale + offset_y;
+			x3 = d[j] * s;
+			y3 = d[j + 1] * s;
 			x2 = (x1+x3)/2f;
 			y2 = (y1+y3)/2f;
 			path.quadTo(x1, y1, x2, y2);
@@ -301,47 +426,44 @@ public class Stroke extends Graphics {
 		}
 
 		// the last actual point is treated as a midpoint
-		x2 = position_x[N-1] * scale + offset_x;
-		y2 = position_y[N-1] * scale + offset_y;
+		x2 = d[offset + (N-1)*S] * s;
+		y2 = d[offset + (N-1)*S + 1] * s;
 		path.quadTo(x1, y1, x2, y2);
-
-		c.drawPath(path, mPen);
 	}
 
 	/**
 	 * Cubic Bezier for variable-width curves
 	 * 
-	 * This works similar to drawPencilWithQuadraticBezier, midpoints are
+	 * This works similar to pencilWithQuadraticBezier, midpoints are
 	 * start/stop point and the actual data point is used as control. Only now
 	 * we draw as a filled shape instead of a stroke along the Bezier path. The
 	 * start/end point are displaced in the normal direction. The data point is
 	 * translated in the two distinct normal directions, yielding two control
-	 * points for the cubic Bezier.
+	 * points for the cubic Bezier. Each segment is a closed sub-path of the
+	 * outline.
+	 * 
+	 * @param path The path to add the outline to
+	 * @param s The scale factor from page coordinates to path coordinates
 	 */
-	private void drawFountainpenWithCubicBezier(Canvas c) {
+	private void fountainpenWithCubicBezier(Path path, float s) {
 		Assert.assertTrue(tool == Tool.FOUNTAINPEN && N >= 3);
-		path.rewind();		
-		mPen.setStyle(Paint.Style.FILL);
-		
-		//Paint paint = new Paint();
-		//paint.setARGB(0xff, 0xff, 0x0, 0x0);
-		//paint.setStrokeWidth(0);
-//		mPen.setStyle(Paint.Style.STROKE);
+		final float[] d = data;
+		final int S = StrokeStore.STRIDE;
 		
-		final float scaled_pen_thickness = getScaledPenThickness();
+		final float scaled_pen_thickness = getScaledPenThickness(s);
 		float x0, x1, x2, x3, y0, y1, y2, y3, p0, p1, p2, p3;
 		float vx01, vy01, vx21, vy21;  // unit tangent vectors 0->1 and 1<-2
 		float norm;
 		float n_x0, n_y0, n_x2, n_y2; // the normals 
 		
 		// the first actual point is treated as a midpoint
-		x0 = position_x[0] * scale + offset_x + 0.1f;
-		y0 = position_y[0] * scale + offset_y;
-		p0 = pressure[0];
+		x0 = d[offset] * s + 0.1f;
+		y0 = d[offset + 1] * s;
+		p0 = d[offset + 2];
 
-		x1 = position_x[1] * scale + offset_x + 0.1f;
-		y1 = position_y[1] * scale + offset_y;
-		p1 = pressure[1];
+		x1 = d[offset + S] * s + 0.1f;
+		y1 = d[offset + S + 1] * s;
+		p1 = d[offset + S + 2];
 		vx01 = x1 - x0;
 		vy01 = y1 - y0;
 		// instead of dividing tangent/norm by two, we multiply norm by 2
@@ -350,11 +472,11 @@ public class Stroke extends Graphics {
 		vy01 = vy01 / norm * scaled_pen_thickness * p0;
 		n_x0 =  vy01;
 		n_y0 = -vx01;
-		for (int i = 2; i < N-1; i++) {
+		for (int i = 2, j = offset + 2*S; i < N-1; i++, j += S) {
 			// (x0,y0) and (x2,y2) are midpoints, (x1,y1) and (x3,y3) are actual points 
-			x3 = position_x[i] * scale + offset_x;
-			y3 = position_y[i] * scale + offset_y;
-			p3 = pressure[i];
+			x3 = d[j] * s;
+			y3 = d[j + 1] * s;
+			p3 = d[j + 2];
 			x2 = (x1+x3)/2f;
 			y2 = (y1+y3)/2f;
 			p2 = (p1+p3)/2f;
@@ -366,7 +488,6 @@ public class Stroke extends Graphics {
 			n_x2 = -vy21;
 			n_y2 =  vx21;
 
-			path.rewind();
 			path.moveTo (x0 + n_x0, y0 + n_y0);
 			// The + boundary of the stroke
 			path.cubicTo(x1 + n_x0, y1 + n_y0, x1 + n_x2, y1 + n_y2, x2 + n_x2, y2 + n_y2);
@@ -376,7 +497,7 @@ public class Stroke extends Graphics {
 			path.cubicTo(x1 - n_x2, y1 - n_y2, x1 - n_x0, y1 - n_y0, x0 - n_x0, y0 - n_y0);
 			// round out the other cap
 			path.cubicTo(x0 - n_x0 - vx01, y0 - n_y0 - vy01, x0 + n_x0 - vx01, y0 + n_y0 - vy01, x0 + n_x0, y0 + n_y0);
-			c.drawPath(path, mPen);
+			path.close();
 
 			x0 = x2;   y0 = y2;  p0 = p2;
 			x1 = x3;   y1 = y3;  p1 = p3;
@@ -385,9 +506,9 @@ public class Stroke extends Graphics {
 		}
 
 		// the last actual point is treated as a midpoint
-		x2 = position_x[N-1] * scale + offset_x;
-		y2 = position_y[N-1] * scale + offset_y;
-		p2 = pressure[N-1];
+		x2 = d[offset + (N-1)*S] * s;
+		y2 = d[offset + (N-1)*S + 1] * s;
+		p2 = d[offset + (N-1)*S + 2];
 		vx21 = x1 - x2;
 		vy21 = y1 - y2;
 		norm = FloatMath.sqrt(vx21*vx21 + vy21*vy21 + 0.0001f) * 2f;
@@ -396,13 +517,12 @@ public class Stroke extends Graphics {
 		n_x2 = -vy21;
 		n_y2 =  vx21;
 
-		path.rewind();
 		path.moveTo(x0 + n_x0, y0 + n_y0);
 		path.cubicTo(x1 + n_x0, y1 + n_y0, x1 + n_x2, y1 + n_y2, x2 + n_x2, y2 + n_y2);
 		path.cubicTo(x2 + n_x2 - vx21, y2 + n_y2 - vy21, x2 - n_x2 - vx21, y2 - n_y2 - vy21, x2 - n_x2, y2 - n_y2);
 		path.cubicTo(x1 - n_x2, y1 - n_y2, x1 - n_x0, y1 - n_y0, x0 - n_x0, y0 - n_y0);
 		path.cubicTo(x0 - n_x0 - vx01, y0 - n_y0 - vy01, x0 + n_x0 - vx01, y0 + n_y0 - vy01, x0 + n_x0, y0 + n_y0);
-		c.drawPath(path, mPen);
+		path.close();
 	}
 
 	public void writeToStream(DataOutputStream out) throws IOException {
@@ -411,39 +531,10 @@ public class Stroke extends Graphics {
 		out.writeInt(pen_thickness);
 		out.writeInt(tool.ordinal());
 		out.writeInt(N);
-		for (int i = 0; i < N; i++) {
-			out.writeFloat(position_x[i]);
-			out.writeFloat(position_y[i]);
-			out.writeFloat(pressure[i]);
-		}
-	}
-
-	public Stroke(DataInputStream in) throws IOException {
-		super(Tool.FOUNTAINPEN);
-		int version = in.readInt();
-		if (version < 1 || version > 2)
-			throw new IOException("Unknown stroke version!");
-		pen_color = in.readInt();
-		pen_thickness = in.readInt();
-		int toolInt = in.readInt();
-		if (toolInt < 0 || toolInt >= Tool.values().length)
-			throw new IOException("Tool ID out of bounds.");
-		tool = Tool.values()[toolInt];
-		setPen(pen_thickness, pen_color);
-		N = in.readInt();
-		position_x = new float[N];
-		position_y = new float[N];
-		pressure = new float[N];
-		for (int i = 0; i < N; i++) {
-			position_x[i] = in.readFloat();
-			position_y[i] = in.readFloat();
-			pressure[i] = in.readFloat();
-		}
-		if (version == 1) {
-			// I changed the thickness quantization for v2
-			pen_thickness *= 2;
-			simplify();
-		}
+		final float[] d = data;
+		final int end = offset + N * StrokeStore.STRIDE;
+		for (int j = offset; j < end; j++)
+			out.writeFloat(d[j]);
 	}
 
 	/**
@@ -451,9 +542,13 @@ public class Stroke extends Graphics {
 	 */
 	private void smooth(LinearFilter.Filter filterId) {
 		LinearFilter filter = LinearFilter.get(filterId);
+		float[] position_x = getCoordinate(0);
+		float[] position_y = getCoordinate(1);
+		float[] pressure = getCoordinate(2);
 		filter.apply(position_x);
 		filter.apply(position_y);
 		filter.apply(pressure);
+		setPoints(position_x, position_y, pressure, N);
 	}
 
 	/**
@@ -466,6 +561,9 @@ public class Stroke extends Graphics {
 	private void smoothGaussianFilter(int n_l) {
 		if (n_l <= 0)
 			return;
+		float[] position_x = getCoordinate(0);
+		float[] position_y = getCoordinate(1);
+		float[] pressure = getCoordinate(2);
 
 		int nw = 2 * n_l + 1;
 		float[] new_position_x = new float[N];
@@ -525,9 +623,7 @@ public class Stroke extends Graphics {
 			new_position_y[l] = ypos;
 			new_pressure[l] = pres;
 		}
-		position_x = new_position_x;
-		position_y = new_position_y;
-		pressure = new_pressure;
+		setPoints(new_position_x, new_position_y, new_pressure, N);
 	}
 
 	// Reduce the number of points
@@ -535,7 +631,7 @@ public class Stroke extends Graphics {
 	// Assumes that x,y coordinates and pressure are scaled to be within [0,1]
 	// for example, using apply_inverse_transform
 	// non-standard metric for "perpendicular distance" for numerical stability
-	private void simplify() {
+	protected void simplify() {
 		// points.add(0);
 		// points.add(N-1);
 		// ListIterator<Integer> point_iter = points.listIterator(1);
@@ -547,30 +643,30 @@ public class Stroke extends Graphics {
 		float[] new_position_y = new float[new_N];
 		float[] new_pressure = new float[new_N];
 		int n = 0;
+		final float[] d = data;
 		ListIterator<Integer> point_iter = points.listIterator();
 		while (point_iter.hasNext()) {
-			int p = point_iter.next();
-			new_position_x[n] = position_x[p];
-			new_position_y[n] = position_y[p];
-			new_pressure[n] = pressure[p];
+			int j = offset + point_iter.next() * StrokeStore.STRIDE;
+			new_position_x[n] = d[j];
+			new_position_y[n] = d[j + 1];
+			new_pressure[n] = d[j + 2];
 			n++;
 		}
 		Assert.assertEquals(n, new_N);
-		N = new_N;
-		position_x = new_position_x;
-		position_y = new_position_y;
-		pressure = new_pressure;
+		setPoints(new_position_x, new_position_y, new_pressure, new_N);
 	}
 
 	// find the mid point with the largest deviation from a straight line
 	// return -1 if there is none up to the desired precision EPSILON
 	private Integer simplifyFindMidPoint(Integer point0, Integer point1) {
-		float x0 = position_x[point0];
-		float y0 = position_y[point0];
-		float p0 = pressure[point0];
-		float x1 = position_x[point1];
-		float y1 = position_y[point1];
-		float p1 = pressure[point1];
+		final float[] pts = data;
+		final int S = StrokeStore.STRIDE;
+		float x0 = pts[offset + point0 * S];
+		float y0 = pts[offset + point0 * S + 1];
+		float p0 = pts[offset + point0 * S + 2];
+		float x1 = pts[offset + point1 * S];
+		float y1 = pts[offset + point1 * S + 1];
+		float p1 = pts[offset + point1 * S + 2];
 
 		// the line has the equation ax + by + c = 0
 		float a = y1 - y0;
@@ -590,9 +686,9 @@ public class Stroke extends Graphics {
 		int mid = -1;
 		float distance_max = 0;
 		for (int i = point0 + 1; i < point1; i++) {
-			float x = position_x[i];
-			float y = position_y[i];
-			float p = pressure[i];
+			float x = pts[offset + i * S];
+			float y = pts[offset + i * S + 1];
+			float p = pts[offset + i * S + 2];
 			float distance = 0;
 
 			// distance in pressure
@@ -693,12 +789,13 @@ public class Stroke extends Graphics {
 		line.setCap(LineStyle.Cap.ROUND_END);
 		line.setJoin(LineStyle.Join.ROUND_JOIN);
 		artist.setLineStyle(line);
-		float x = position_x[0];
-		float y = position_y[0];
+		final float[] d = data;
+		float x = d[offset];
+		float y = d[offset + 1];
 		artist.moveTo(x, y);
-		for (int i = 1; i < N; i++) {
-			x = position_x[i];
-			y = position_y[i];
+		for (int i = 1, j = offset + StrokeStore.STRIDE; i < N; i++, j += StrokeStore.STRIDE) {
+			x = d[j];
+			y = d[j + 1];
 			artist.lineTo(x, y);
 		}
 		artist.stroke();
@@ -712,18 +809,20 @@ public class Stroke extends Graphics {
 		artist.setLineStyle(line);
 	
 		float x0, x1, x2, x3, y0, y1, y2, y3;
+		final float[] d = data;
+		final int S = StrokeStore.STRIDE;
 		
 		// the first actual point is treated as a midpoint
-		x0 = position_x[0];
-		y0 = position_y[0];
+		x0 = d[offset];
+		y0 = d[offset + 1];
 		artist.moveTo(x0, y0);
 
-		x1 = position_x[1];
-		y1 = position_y[1];
-		for (int i = 2; i < N-1; i++) {
+		x1 = d[offset + S];
+		y1 = d[offset + S + 1];
+		for (int i = 2, j = offset + 2*S; i < N-1; i++, j += S) {
 			// (x0,y0) and (x2,y2) are midpoints, (x1,y1) and (x3,y3) are actual points 
-			x3 = position_x[i];
-			y3 = position_y[i];
+			x3 = d[j];
+			y3 = d[j + 1];
 			x2 = (x1+x3)/2f;
 			y2 = (y1+y3)/2f;
 			artist.quadTo(x1, y1, x2, y2);
@@ -732,8 +831,8 @@ public class Stroke extends Graphics {
 		}
 
 		// the last actual point is treated as a midpoint
-		x2 = position_x[N-1];
-		y2 = position_y[N-1];
+		x2 = d[offset + (N-1)*S];
+		y2 = d[offset + (N-1)*S + 1];
 		artist.quadTo(x1, y1, x2, y2);
 
 		artist.stroke();
@@ -742,6 +841,8 @@ public class Stroke extends Graphics {
 	private void renderFountainpenWithCubicBezier(Artist artist, FillStyle fill) {
 		float scaled_pen_thickness = getScaledPenThickness(1f);
 		artist.setFillStyle(fill);
+		final float[] d = data;
+		final int S = StrokeStore.STRIDE;
 		
 		float x0, x1, x2, x3, y0, y1, y2, y3, p0, p1, p2, p3;
 		float vx01, vy01, vx21, vy21;  // unit tangent vectors 0->1 and 1<-2
@@ -749,13 +850,13 @@ public class Stroke extends Graphics {
 		float n_x0, n_y0, n_x2, n_y2; // the normals 
 		
 		// the first actual point is treated as a midpoint
-		x0 = position_x[0];
-		y0 = position_y[0];
-		p0 = pressure[0];
+		x0 = d[offset];
+		y0 = d[offset + 1];
+		p0 = d[offset + 2];
 
-		x1 = position_x[1];
-		y1 = position_y[1];
-		p1 = pressure[1];
+		x1 = d[offset + S];
+		y1 = d[offset + S + 1];
+		p1 = d[offset + S + 2];
 		vx01 = x1 - x0;
 		vy01 = y1 - y0;
 		// instead of dividing tangent/norm by two, we multiply norm by 2
@@ -764,11 +865,11 @@ public class Stroke extends Graphics {
 		vy01 = vy01 / norm * scaled_pen_thickness * p0;
 		n_x0 =  vy01;
 		n_y0 = -vx01;
-		for (int i = 2; i < N-1; i++) {
+		for (int i = 2, j = offset + 2*S; i < N-1; i++, j += S) {
 			// (x0,y0) and (x2,y2) are midpoints, (x1,y1) and (x3,y3) are actual points 
-			x3 = position_x[i];
-			y3 = position_y[i];
-			p3 = pressure[i];
+			x3 = d[j];
+			y3 = d[j + 1];
+			p3 = d[j + 2];
 			x2 = (x1+x3)/2f;
 			y2 = (y1+y3)/2f;
 			p2 = (p1+p3)/2f;
@@ -798,9 +899,9 @@ public class Stroke extends Graphics {
 		}
 
 		// the last actual point is treated as a midpoint
-		x2 = position_x[N-1];
-		y2 = position_y[N-1];
-		p2 = pressure[N-1];
+		x2 = d[offset + (N-1)*S];
+		y2 = d[offset + (N-1)*S + 1];
+		p2 = d[offset + (N-1)*S + 2];
 		vx21 = x1 - x2;
 		vy21 = y1 - y2;
 		norm = FloatMath.sqrt(vx21*vx21 + vy21*vy21 + 0.0000001f) * 2f;
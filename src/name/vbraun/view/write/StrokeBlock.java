@@ -0,0 +1,305 @@
+package name.vbraun.view.write;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import name.vbraun.view.write.Graphics.Tool;
+
+/**
+ * Bulk encoding of all strokes of a page, used by page format version 7
+ *
+ * The stroke headers (pen and number of points) are followed by a single
+ * block with the sample points of all strokes as little-endian floats, in
+ * the same (x, y, pressure) layout as in the {@link StrokeStore}. Large
+ * blocks are compressed: each coordinate is replaced by the difference of
+ * its IEEE bit pattern to the one of the previous point, which is exact
+ * and makes neighbouring points compress well, and then deflated.
+ *
+ * @author vbraun
+ *
+ */
+public class StrokeBlock {
+	@SuppressWarnings("unused")
+	private static final String TAG = "StrokeBlock";
+
+	private static final int ENCODING_RAW = 0;
+	private static final int ENCODING_DELTA_DEFLATE = 1;
+
+	// compress the sample points if they take more than this many bytes
+	private static final int COMPRESS_THRESHOLD = 4096;
+
+	private static final int STRIDE = StrokeStore.STRIDE;
+
+	// the stroke headers (color, thickness, tool, number of points) and the sample points of all strokes
+	private final int[] headers;
+	private final float[] points;
+
+	protected StrokeBlock(int[] headers, float[] points) {
+		this.headers = headers;
+		this.points = points;
+	}
+
+	protected int[] getHeaders() {
+		return headers;
+	}
+
+	protected float[] getPoints() {
+		return points;
+	}
+
+	public static void write(DataOutputStream out, Collection<Stroke> strokes) throws IOException {
+		encode(strokes).writeTo(out);
+	}
+
+	/**
+	 * Copy the strokes into a new block. This only copies the sample points,
+	 * the expensive compression is done by {@link #writeTo(DataOutputStream)}. 
+	 * So the strokes can be changed afterwards, and the block written in 
+	 * another thread.
+	 * @param strokes
+	 * @return The strokes, not yet encoded
+	 */
+	public static StrokeBlock encode(Collection<Stroke> strokes) {
+		int floats = 0;
+		int[] headers = new int[4 * strokes.size()];
+		int i = 0;
+		for (Stroke s : strokes) {
+			headers[i++] = s.pen_color;
+			headers[i++] = s.pen_thickness;
+			headers[i++] = s.tool.ordinal();
+			headers[i++] = s.N;
+			floats += s.N * STRIDE;
+		}
+		float[] points = new float[floats];
+		int pos = 0;
+		for (Stroke s : strokes) {
+			System.arraycopy(s.data, s.offset, points, pos, s.N * STRIDE);
+			pos += s.N * STRIDE;
+		}
+		return new StrokeBlock(headers, points);
+	}
+
+	/**
+	 * Write the block, compressing the sample points if necessary. This can 
+	 * be called from any thread.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(headers.length / 4);
+		for (int header : headers)
+			out.writeInt(header);
+		ByteBuffer buffer = ByteBuffer.allocate(4 * points.length).order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.capacity() <= COMPRESS_THRESHOLD) {
+			buffer.asFloatBuffer().put(points);
+			out.writeInt(ENCODING_RAW);
+			out.writeInt(buffer.capacity());
+			out.write(buffer.array());
+			return;
+		}
+		IntBuffer deltas = buffer.asIntBuffer();
+		int[] previous = new int[STRIDE];
+		for (int j = 0, k = 0; j < points.length; j++, k = (k + 1) % STRIDE) {
+			int bits = Float.floatToRawIntBits(points[j]);
+			deltas.put(bits - previous[k]);
+			previous[k] = bits;
+		}
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(buffer.capacity() / 2);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		DeflaterOutputStream deflaterOut = new DeflaterOutputStream(compressed, deflater);
+		deflaterOut.write(buffer.array());
+		deflaterOut.close();
+		deflater.end();
+		out.writeInt(ENCODING_DELTA_DEFLATE);
+		out.writeInt(buffer.capacity());
+		out.writeInt(compressed.size());
+		compressed.writeTo(out);
+	}
+
+	public static void read(DataInputStream in, StrokeStore store, Collection<Stroke> strokes) throws IOException {
+		readBlock(in).toStrokes(store, strokes, null);
+	}
+
+	/**
+	 * Read the strokes of page versions up to 6, where each stroke was 
+	 * written separately by {@link Stroke#writeToStream(DataOutputStream)}
+	 * @param in
+	 * @param store The storage for the sample points
+	 * @param strokes The collection to add the strokes to
+	 * @throws IOException
+	 */
+	public static void readLegacy(DataInputStream in, StrokeStore store, Collection<Stroke> strokes) throws IOException {
+		BitSet simplify = new BitSet();
+		readLegacyBlock(in, simplify).toStrokes(store, strokes, simplify);
+	}
+
+	/**
+	 * @param simplify The strokes to simplify, or null
+	 */
+	private void toStrokes(StrokeStore store, Collection<Stroke> strokes, BitSet simplify) {
+		int pos = 0;
+		for (int i = 0; i < headers.length; i += 4) {
+			Tool tool = Tool.values()[headers[i + 2]];
+			Stroke s = new Stroke(tool, headers[i + 1], headers[i], headers[i + 3], store);
+			System.arraycopy(points, pos, s.data, s.offset, s.N * STRIDE);
+			pos += s.N * STRIDE;
+			if (simplify != null && simplify.get(i / 4))
+				s.simplify();
+			strokes.add(s);
+		}
+	}
+
+	/**
+	 * Read the strokes of page versions up to 6 without creating the strokes
+	 * @param in The page, whose available() must be the remaining length
+	 * @param simplify Set to the strokes that were written by version 1, 
+	 *        which were not simplified
+	 * @return The block
+	 * @throws IOException
+	 */
+	protected static StrokeBlock readLegacyBlock(DataInputStream in, BitSet simplify) throws IOException {
+		int nStrokes = in.readInt();
+		if (nStrokes < 0)
+			throw new IOException("Negative number of strokes.");
+		// each stroke is at least its version and header
+		if (nStrokes > in.available() / 20)
+			throw new IOException("Truncated stroke data.");
+		int[] headers = new int[4 * nStrokes];
+		LinkedList<float[]> strokePoints = new LinkedList<float[]>();
+		int floats = 0;
+		for (int i = 0; i < headers.length; i += 4) {
+			int version = in.readInt();
+			if (version < 1 || version > 2)
+				throw new IOException("Unknown stroke version!");
+			headers[i] = in.readInt();
+			headers[i + 1] = in.readInt();
+			int toolInt = in.readInt();
+			if (toolInt < 0 || toolInt >= Tool.values().length)
+				throw new IOException("Tool ID out of bounds.");
+			headers[i + 2] = toolInt;
+			int N = in.readInt();
+			if (N < 0)
+				throw new IOException("Negative number of points.");
+			if (N > in.available() / (4 * STRIDE))
+				throw new IOException("Truncated stroke data.");
+			headers[i + 3] = N;
+			if (version == 1) {
+				// I changed the thickness quantization for v2
+				headers[i + 1] *= 2;
+				simplify.set(i / 4);
+			}
+			float[] p = new float[N * STRIDE];
+			for (int j = 0; j < p.length; j++)
+				p[j] = in.readFloat();
+			strokePoints.add(p);
+			floats += p.length;
+		}
+		float[] points = new float[floats];
+		int pos = 0;
+		for (float[] p : strokePoints) {
+			System.arraycopy(p, 0, points, pos, p.length);
+			pos += p.length;
+		}
+		return new StrokeBlock(headers, points);
+	}
+
+	/**
+	 * Read and decode a block without creating the strokes
+	 * @param in The page or journal record, whose available() must be the remaining length
+	 * @return The block
+	 * @throws IOException
+	 */
+	protected static StrokeBlock readBlock(DataInputStream in) throws IOException {
+		int nStrokes = in.readInt();
+		if (nStrokes < 0)
+			throw new IOException("Negative number of strokes.");
+		if (nStrokes > in.available() / 16)
+			throw new IOException("Truncated stroke data.");
+		int[] headers = new int[4 * nStrokes];
+		long floats = 0;
+		for (int i = 0; i < headers.length; i += 4) {
+			headers[i] = in.readInt();
+			headers[i + 1] = in.readInt();
+			int toolInt = in.readInt();
+			if (toolInt < 0 || toolInt >= Tool.values().length)
+				throw new IOException("Tool ID out of bounds.");
+			headers[i + 2] = toolInt;
+			int N = in.readInt();
+			if (N < 0)
+				throw new IOException("Negative number of points.");
+			headers[i + 3] = N;
+			floats += (long) N * STRIDE;
+		}
+		int encoding = in.readInt();
+		int length = in.readInt();
+		if (length != 4 * floats)
+			throw new IOException("Stroke data size mismatch.");
+		if (encoding == ENCODING_RAW && length > in.available())
+			throw new IOException("Truncated stroke data.");
+		ByteBuffer buffer;
+		if (encoding == ENCODING_RAW && in instanceof MappedDataInputStream) 
+			// decode straight from the mapped file 
+			buffer = ((MappedDataInputStream) in).slice(length);
+		else if (encoding == ENCODING_RAW) {
+			byte[] raw = new byte[length];
+			in.readFully(raw);
+			buffer = ByteBuffer.wrap(raw);
+		} else if (encoding == ENCODING_DELTA_DEFLATE) {
+			byte[] raw = new byte[length];
+			int compressedLength = in.readInt();
+			if (compressedLength < 0 || compressedLength > in.available())
+				throw new IOException("Truncated stroke data.");
+			byte[] compressed = new byte[compressedLength];
+			in.readFully(compressed);
+			inflate(compressed, raw);
+			buffer = ByteBuffer.wrap(raw);
+		} else
+			throw new IOException("Unknown stroke encoding.");
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		float[] points = new float[(int) floats];
+		if (encoding == ENCODING_RAW)
+			buffer.asFloatBuffer().get(points);
+		else {
+			IntBuffer deltas = buffer.asIntBuffer();
+			int[] previous = new int[STRIDE];
+			for (int j = 0, k = 0; j < points.length; j++, k = (k + 1) % STRIDE) {
+				int bits = previous[k] + deltas.get();
+				points[j] = Float.intBitsToFloat(bits);
+				previous[k] = bits;
+			}
+		}
+		return new StrokeBlock(headers, points);
+	}
+
+	private static void inflate(byte[] compressed, byte[] raw) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		try {
+			int n = 0;
+			while (n < raw.length && !inflater.finished()) {
+				int inflated = inflater.inflate(raw, n, raw.length - n);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += inflated;
+			}
+			if (n != raw.length)
+				throw new IOException("Truncated stroke data.");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt stroke data: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package name.vbraun.view.write;
+
+import java.util.Collection;
+
+import android.graphics.Paint;
+
+/**
+ * Packed storage for the sample points of many strokes
+ *
+ * The (x, y, pressure) triples of the strokes are stored consecutively in
+ * large float arrays (chunks), so a page with thousands of strokes needs
+ * only a handful of arrays. A {@link Stroke} only remembers the chunk, the
+ * offset, and the number of points. The store also holds the Paint
+ * that is used to draw its strokes, so it must only be drawn from one
+ * thread at a time (the Page lock takes care of that).
+ *
+ * Storage is only ever appended to. The space of removed strokes is
+ * reclaimed when the page is saved, see {@link #needsCompaction(Collection)}, or
+ * loaded again.
+ *
+ * @author vbraun
+ *
+ */
+public class StrokeStore {
+	@SuppressWarnings("unused")
+	private static final String TAG = "StrokeStore";
+
+	// floats per sample point
+	protected static final int STRIDE = 3;
+
+	// chunk size in floats, larger strokes get their own array
+	private static final int CHUNK_SIZE = STRIDE * 4096;
+
+	private final int chunkSize;
+	private float[] chunk = null;
+	private int used = 0;
+
+	// the floats handed out from chunks, including those of removed strokes
+	private long allocated = 0;
+
+	protected final Paint pen = new Paint();
+
+	public StrokeStore() {
+		this(CHUNK_SIZE);
+	}
+
+	private StrokeStore(int chunkSize) {
+		this.chunkSize = chunkSize;
+		pen.setAntiAlias(true);
+		pen.setStrokeCap(Paint.Cap.ROUND);
+	}
+
+	/**
+	 * Construct a store for a single stroke that is not part of a page yet
+	 * @param N The number of sample points
+	 */
+	protected static StrokeStore forStroke(int N) {
+		return new StrokeStore(N * STRIDE);
+	}
+
+	/**
+	 * Allocate space for the sample points of a stroke. Sets the stroke's
+	 * data array, offset, and number of points. The previous data of the
+	 * stroke is not copied.
+	 * @param stroke The stroke
+	 * @param N The number of sample points
+	 */
+	protected void allocate(Stroke stroke, int N) {
+		int size = N * STRIDE;
+		stroke.store = this;
+		stroke.N = N;
+		if (size > chunkSize) {
+			stroke.data = new float[size];
+			stroke.offset = 0;
+			return;
+		}
+		if (chunk == null || used + size > chunk.length) {
+			chunk = new float[chunkSize];
+			used = 0;
+		}
+		stroke.data = chunk;
+		stroke.offset = used;
+		used += size;
+		allocated += size;
+	}
+
+	/**
+	 * Whether copying the strokes into a new store would free a significant
+	 * amount of memory. Only the chunks are counted, strokes with their 
+	 * own array do not waste any space.
+	 * @param strokes The strokes that are still in use
+	 * @return Whether less than half of the space allocated from chunks is in use
+	 */
+	protected boolean needsCompaction(Collection<Stroke> strokes) {
+		if (allocated <= chunkSize)
+			return false;
+		long inUse = 0;
+		for (Stroke s : strokes)
+			if (s.store == this && s.data.length == chunkSize)
+				inUse += s.N * STRIDE;
+		return allocated > 2 * inUse;
+	}
+
+	/**
+	 * Move the sample points of the stroke into this store
+	 * @param stroke
+	 */
+	protected void pack(Stroke stroke) {
+		if (stroke.store == this)
+			return;
+		float[] data = stroke.data;
+		int offset = stroke.offset;
+		allocate(stroke, stroke.N);
+		System.arraycopy(data, offset, stroke.data, stroke.offset, stroke.N * STRIDE);
+	}
+}
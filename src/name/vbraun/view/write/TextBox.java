@@ -33,6 +33,12 @@ public class TextBox extends Graphics {
 
 	}
 
+	@Override
+	protected void computePageBoundingBox(RectF box) {
+		// TODO Auto-generated method stub
+
+	}
+
 	@Override
 	public float distance(float x_screen, float y_screen) {
 		// TODO Auto-generated method stub
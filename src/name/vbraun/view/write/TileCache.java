@@ -0,0 +1,284 @@
+package name.vbraun.view.write;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+/**
+ * Cache of rendered page tiles
+ *
+ * The rendered page is split into square tiles of fixed size (in pixels).
+ * Tiles are identified by page, zoom level (the scale of the page
+ * transformation), and position relative to the page origin. They do not
+ * depend on the page offset, so panning only needs to render the tiles that
+ * were not visible before. When graphics are added or removed only the
+ * affected part of the tiles needs to be redrawn.
+ *
+ * @author vbraun
+ *
+ */
+public class TileCache {
+	private static final String TAG = "TileCache";
+
+	public static final int TILE_SIZE = 256;
+
+	private static class Key {
+		private final Page page;
+		private final float scale;
+		private final int x, y;
+
+		private Key(Page page, float scale, int x, int y) {
+			this.page = page;
+			this.scale = scale;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return page == k.page && scale == k.scale && x == k.x && y == k.y;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = System.identityHashCode(page);
+			h = 31 * h + Float.floatToIntBits(scale);
+			h = 31 * h + x;
+			h = 31 * h + y;
+			return h;
+		}
+	}
+
+	private int maxTiles = 64;
+	private final LinkedList<Bitmap> spareBitmaps = new LinkedList<Bitmap>();
+
+	private final LinkedHashMap<Key, Bitmap> tiles = new LinkedHashMap<Key, Bitmap>(64, 0.75f, true) {
+		private static final long serialVersionUID = 2816853407212373498L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Bitmap> eldest) {
+			if (size() <= maxTiles)
+				return false;
+			recycle(eldest.getValue());
+			return true;
+		}
+	};
+
+	private final Canvas tileCanvas = new Canvas();
+	private final RectF tileRect = new RectF();
+	private final RectF damage = new RectF();
+	private final Rect mRect = new Rect();
+
+	/**
+	 * Set the cache size such that the given screen area can be covered a few times over
+	 * @param width The screen width
+	 * @param height The screen height
+	 */
+	public void setScreenSize(int width, int height) {
+		int perScreen = (width / TILE_SIZE + 2) * (height / TILE_SIZE + 2);
+		maxTiles = perScreen * 5 / 2;
+		Log.d(TAG, "Caching at most "+maxTiles+" tiles");
+	}
+
+	private void recycle(Bitmap bitmap) {
+		if (spareBitmaps.size() < 4)
+			spareBitmaps.add(bitmap);
+		else
+			bitmap.recycle();
+	}
+
+	private Bitmap newBitmap() {
+		if (!spareBitmaps.isEmpty())
+			return spareBitmaps.removeFirst();
+		return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565);
+	}
+
+	/**
+	 * The screen rectangle covered by a tile for the page's current transformation
+	 */
+	protected static RectF tileScreenRect(Transformation t, int x, int y, RectF rect) {
+		float left = x * TILE_SIZE + t.offset_x;
+		float top  = y * TILE_SIZE + t.offset_y;
+		rect.set(left, top, left + TILE_SIZE, top + TILE_SIZE);
+		return rect;
+	}
+
+	/**
+	 * Render (part of) the tile
+	 * @param page The page (with its current transformation)
+	 * @param x The tile x position
+	 * @param y The tile y position
+	 * @param bitmap The tile bitmap
+	 * @param screenRect The damaged area in screen coordinates or null to render everything
+	 */
+	private void render(Page page, int x, int y, Bitmap bitmap, RectF screenRect) {
+		Transformation t = page.getTransform();
+		tileScreenRect(t, x, y, tileRect);
+		if (screenRect != null && !damage.setIntersect(tileRect, screenRect))
+			return;
+		else if (screenRect == null)
+			damage.set(tileRect);
+		tileCanvas.setBitmap(bitmap);
+		tileCanvas.save();
+		tileCanvas.translate(-tileRect.left, -tileRect.top);
+		page.draw(tileCanvas, damage);
+		tileCanvas.restore();
+	}
+
+	/**
+	 * Draw the page to the canvas using cached tiles where possible.
+	 * @param canvas The canvas to draw on (in screen coordinates)
+	 * @param page The page to draw (with its current transformation)
+	 * @param screenRect The area to draw, in screen coordinates
+	 */
+	public void draw(Canvas canvas, Page page, RectF screenRect) {
+		draw(canvas, page, screenRect, true);
+	}
+
+	/**
+	 * Draw the cached tiles to the canvas, leaving the area of missing tiles untouched.
+	 * @param canvas The canvas to draw on (in screen coordinates)
+	 * @param page The page to draw (with its current transformation)
+	 * @param screenRect The area to draw, in screen coordinates
+	 */
+	public void drawCached(Canvas canvas, Page page, RectF screenRect) {
+		draw(canvas, page, screenRect, false);
+	}
+
+	private void draw(Canvas canvas, Page page, RectF screenRect, boolean renderMissing) {
+		Transformation t = page.getTransform();
+		int x0 = tileX(t, screenRect.left);
+		int x1 = tileX(t, screenRect.right);
+		int y0 = tileY(t, screenRect.top);
+		int y1 = tileY(t, screenRect.bottom);
+		screenRect.roundOut(mRect);
+		canvas.save();
+		canvas.clipRect(mRect);
+		for (int x = x0; x <= x1; x++)
+			for (int y = y0; y <= y1; y++) {
+				Key key = new Key(page, t.scale, x, y);
+				Bitmap bitmap = tiles.get(key);
+				if (bitmap == null) {
+					if (!renderMissing) 
+						continue;
+					bitmap = newBitmap();
+					render(page, x, y, bitmap, null);
+					tiles.put(key, bitmap);
+				}
+				// at the same position that the tile was rendered for, see tileScreenRect()
+				tileScreenRect(t, x, y, tileRect);
+				canvas.drawBitmap(bitmap, tileRect.left, tileRect.top, null);
+			}
+		canvas.restore();
+	}
+
+	private static int tileX(Transformation t, float x) {
+		return (int)Math.floor((x - t.offset_x) / TILE_SIZE);
+	}
+
+	private static int tileY(Transformation t, float y) {
+		return (int)Math.floor((y - t.offset_y) / TILE_SIZE);
+	}
+
+	/**
+	 * Find the tiles that are not cached yet
+	 * @param page The page (with its current transformation)
+	 * @param screenRect The area to check, in screen coordinates
+	 * @param missing The list to append the positions of the missing tiles to
+	 * @return Whether there are any missing tiles
+	 */
+	public boolean findMissing(Page page, RectF screenRect, List<Point> missing) {
+		Transformation t = page.getTransform();
+		int x0 = tileX(t, screenRect.left);
+		int x1 = tileX(t, screenRect.right);
+		int y0 = tileY(t, screenRect.top);
+		int y1 = tileY(t, screenRect.bottom);
+		boolean found = false;
+		for (int x = x0; x <= x1; x++)
+			for (int y = y0; y <= y1; y++) {
+				if (tiles.containsKey(new Key(page, t.scale, x, y)))
+					continue;
+				found = true;
+				if (missing != null)
+					missing.add(new Point(x, y));
+			}
+		return found;
+	}
+
+	/**
+	 * Add a tile that was rendered elsewhere. The cache takes ownership of the bitmap.
+	 * @param page The page
+	 * @param scale The page scale that the tile was rendered at 
+	 * @param x The tile x position
+	 * @param y The tile y position
+	 * @param bitmap The rendered tile
+	 */
+	public void put(Page page, float scale, int x, int y, Bitmap bitmap) {
+		Key key = new Key(page, scale, x, y);
+		if (tiles.containsKey(key))
+			recycle(bitmap);
+		else
+			tiles.put(key, bitmap);
+	}
+
+	/**
+	 * Redraw the part of the cached tiles that changed. Tiles of the page at
+	 * other zoom levels are discarded.
+	 * @param page The page whose content changed
+	 * @param screenRect The changed area in screen coordinates (for the current transformation)
+	 */
+	public void invalidate(Page page, RectF screenRect) {
+		float scale = page.getTransform().scale;
+		Iterator<Map.Entry<Key, Bitmap>> iter = tiles.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, Bitmap> entry = iter.next();
+			Key key = entry.getKey();
+			if (key.page != page)
+				continue;
+			if (key.scale != scale) {
+				recycle(entry.getValue());
+				iter.remove();
+				continue;
+			}
+			render(page, key.x, key.y, entry.getValue(), screenRect);
+		}
+	}
+
+	/**
+	 * Discard all cached tiles of the page
+	 * @param page
+	 */
+	public void invalidate(Page page) {
+		Iterator<Map.Entry<Key, Bitmap>> iter = tiles.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, Bitmap> entry = iter.next();
+			if (entry.getKey().page != page)
+				continue;
+			recycle(entry.getValue());
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Discard all cached tiles
+	 */
+	public void clear() {
+		for (Bitmap bitmap : tiles.values())
+			bitmap.recycle();
+		tiles.clear();
+		for (Bitmap bitmap : spareBitmaps)
+			bitmap.recycle();
+		spareBitmaps.clear();
+	}
+}
@@ -59,7 +59,7 @@ public abstract class TouchHandlerABC {
 	 * Redraw the page
 	 */
 	protected void redraw() {
-		getPage().draw(view.canvas);
+		view.drawPage();
 		view.invalidate();
 	}
 
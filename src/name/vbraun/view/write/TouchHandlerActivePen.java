@@ -149,7 +149,7 @@ public class TouchHandlerActivePen
 				Transformation t = pinchZoomTransform(page.getTransform(), 
 						oldX1, newX1, oldX2, newX2, oldY1, newY1, oldY2, newY2);
 				page.setTransform(t, view.canvas);
-				page.draw(view.canvas);
+				view.drawPage();
 				view.invalidate();
 			}
 			penID = fingerId1 = fingerId2 = -1;
@@ -161,7 +161,7 @@ public class TouchHandlerActivePen
 			Log.v(TAG, "ACTION_CANCEL");
 			N = 0;
 			penID = fingerId1 = fingerId2 = -1;
-			getPage().draw(view.canvas);
+			view.drawPage();
 			view.invalidate();
 			return true;
 		}
@@ -50,6 +50,7 @@ public abstract class TouchHandlerControlpointABC
 		if (newGraphicsObject == null && activeControlpoint != null) {
 			// editing existing object
 			activeControlpoint.getGraphics().restore();
+			getPage().updateGraphics(activeControlpoint.getGraphics());
 		}
 		super.interrupt();
 	}
@@ -164,7 +165,7 @@ public abstract class TouchHandlerControlpointABC
 			// if (event.getPointerId(0) != penID) return true;
 			Log.v(TAG, "ACTION_CANCEL");
 			abortMotion();
-			getPage().draw(view.canvas);
+			view.drawPage();
 			view.invalidate();
 			return true;
 		}
@@ -194,7 +195,7 @@ public abstract class TouchHandlerControlpointABC
 						oldX1, newX1, oldX2, newX2, oldY1, newY1, oldY2, newY2);
 				page.setTransform(t, view.canvas);
 
-				page.draw(view.canvas);
+				view.drawPage();
 				view.invalidate();
 				abortMotion();
 			}
@@ -218,7 +219,7 @@ public abstract class TouchHandlerControlpointABC
 		Log.d(TAG, "trash = "+trash);
 		if (trash) {
 			if (isNew) {
-				getPage().draw(view.canvas);
+				view.drawPage();
 			    view.invalidate();
 			} else
 				removeGraphics(activeControlpoint.getGraphics());
@@ -299,12 +300,17 @@ public abstract class TouchHandlerControlpointABC
 		Assert.assertNotNull(activeControlpoint);
 		activeControlpoint.move(newX, newY);
 		GraphicsControlpoint graphics = activeControlpoint.getGraphics();
+		if (newGraphicsObject == null)
+			getPage().updateGraphics(graphics);
 		// Log.v(TAG, "drawOutline "+graphics.getBoundingBoxRoundOut());
 		RectF newBoundingBox = graphics.getBoundingBox();
 		final float dr = graphics.controlpointRadius();
 		newBoundingBox.inset(-dr, -dr);
 		bBox.union(newBoundingBox);
-		getPage().draw(view.canvas, bBox);
+		if (newGraphicsObject == null)
+			view.pageChanged(bBox);
+		else
+			view.drawPage(bBox);
 		if (newGraphicsObject != null) 
 			newGraphicsObject.draw(view.canvas, newGraphicsObject.getBoundingBox());
 		bBox.roundOut(rect);
@@ -29,7 +29,7 @@ public class TouchHandlerEraser extends TouchHandlerABC {
 		int action = event.getActionMasked();
 		
 		if (action == MotionEvent.ACTION_MOVE && penID == -1) {
-			if (getPage().is_readonly) return true;
+			if (getPage().isReadonly()) return true;
 			if (view.isOnPalmShield(event)) return true;
 			if (!useForWriting(event)) return true;
 			penID = event.getPointerId(0);
@@ -52,7 +52,7 @@ public class TouchHandlerEraser extends TouchHandlerABC {
 			oldY = newY;
 			return true;
 		} else if (action == MotionEvent.ACTION_DOWN) {  // start move
-			if (getPage().is_readonly) {
+			if (getPage().isReadonly()) {
 				view.toastIsReadonly();
 				return true;
 			}
@@ -29,7 +29,7 @@ public class TouchHandlerImage extends TouchHandlerControlpointABC {
 
 	@Override
 	protected LinkedList<? extends GraphicsControlpoint> getGraphicsObjects() {
-		return getPage().images;
+		return getPage().getImages();
 	}
 
 	protected float maxDistanceControlpointScreen() {
@@ -46,6 +46,7 @@ public class TouchHandlerImage extends TouchHandlerControlpointABC {
 	@Override
 	protected void editGraphics(GraphicsControlpoint graphics) {
 		graphics.restore();
+		getPage().updateGraphics(graphics);
 		GraphicsImage image = (GraphicsImage) graphics;
 		view.callOnEditImageListener(image);
 	}
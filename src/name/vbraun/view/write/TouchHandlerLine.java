@@ -13,7 +13,7 @@ public class TouchHandlerLine extends TouchHandlerControlpointABC {
 
 	@Override
 	protected LinkedList<? extends GraphicsControlpoint> getGraphicsObjects() {
-		return getPage().lineArt;
+		return getPage().getLineArt();
 	}
 
 	@Override
@@ -97,7 +97,7 @@ public class TouchHandlerMoveZoom extends TouchHandlerABC {
 			// Log.v(TAG, "ACTION_UP "+fingerId1+" dx="+dx+", dy="+dy);
 			Page page = getPage();
 			page.setTransform(page.transformation.offset(dx,dy), view.canvas);
-			page.draw(view.canvas);
+			view.drawPage();
 			view.invalidate();
 			fingerId1 = fingerId2 = -1;
 			return true;
@@ -142,7 +142,7 @@ public class TouchHandlerMoveZoom extends TouchHandlerABC {
 			float new_offset_y = page_offset_y*scale-y0*scale+y1;
 			// perform pinch-to-zoom here
 			page.setTransform(new_offset_x, new_offset_y, new_page_scale, view.canvas);
-			page.draw(view.canvas);
+			view.drawPage();
 			view.invalidate();
 			fingerId1 = fingerId2 = -1;
 		}
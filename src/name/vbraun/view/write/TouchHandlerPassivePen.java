@@ -85,7 +85,7 @@ public class TouchHandlerPassivePen
 			}
 			if (view.isOnPalmShield(event))
 				return true;
-			if (getPage().is_readonly) {
+			if (getPage().isReadonly()) {
 				view.toastIsReadonly();
 				return true;
 			}
@@ -118,7 +118,7 @@ public class TouchHandlerPassivePen
 			newT = System.currentTimeMillis();
 			if (view.isOnPalmShield(event))
 				return true;
-			if (getPage().is_readonly) {
+			if (getPage().isReadonly()) {
 				view.toastIsReadonly();
 				return true;
 			}
@@ -0,0 +1,151 @@
+package com.write.Quill.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Write a book directory to a compressed archive and extract it again
+ *
+ * @author vbraun
+ *
+ */
+public class BookArchiveTest extends TestCase {
+
+	/**
+	 * Just enough storage to parse the book directory names
+	 */
+	private static class TestStorage extends Storage {
+		private final File root;
+		public TestStorage(File root) { this.root = root; }
+		public File getFilesDir() { return root; }
+		public File getExternalStorageDirectory() { return root; }
+		public File getBackupDir() { return root; }
+		protected UUID loadCurrentBookUUID() { return null; }
+		protected void saveCurrentBookUUID(UUID uuid) {}
+		public String formatDateTime(long millis) { return String.valueOf(millis); }
+		public void LogMessage(String TAG, String message) {}
+		public void LogError(String TAG, String message) {}
+	}
+
+	private static final String PAGE_FILE = "page_0" + Book.QUILL_DATA_FILE_SUFFIX;
+	private static final String IMAGE_FILE = "image.jpg";
+
+	private File root;
+	private File bookDir;
+	private UUID uuid;
+	private byte[] pageData;
+	private byte[] imageData;
+
+	@Override
+	protected void setUp() throws IOException {
+		root = File.createTempFile("BookArchiveTest", "");
+		assertTrue(root.delete() && root.mkdir());
+		Storage.instance = new TestStorage(root);
+		uuid = UUID.randomUUID();
+		bookDir = new File(root, Storage.NOTEBOOK_DIRECTORY_PREFIX + uuid.toString());
+		assertTrue(bookDir.mkdir());
+		Random random = new Random(9);
+		pageData = new byte[100000];
+		for (int i = 0; i < pageData.length; i++)
+			pageData[i] = (byte) random.nextInt(4);
+		imageData = new byte[10000];
+		random.nextBytes(imageData);
+		writeFile(new File(bookDir, Book.INDEX_FILE), new byte[] {1, 2, 3});
+		writeFile(new File(bookDir, PAGE_FILE), pageData);
+		writeFile(new File(bookDir, IMAGE_FILE), imageData);
+		// left over from an interrupted save
+		writeFile(new File(bookDir, "page_1" + Book.TEMP_FILE_SUFFIX), new byte[] {4});
+	}
+
+	@Override
+	protected void tearDown() {
+		deleteAll(root);
+		Storage.instance = null;
+	}
+
+	private static void writeFile(File file, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		byte[] data = new byte[0];
+		byte[] buffer = new byte[4096];
+		int count;
+		try {
+			while ((count = in.read(buffer)) > 0) {
+				data = Arrays.copyOf(data, data.length + count);
+				System.arraycopy(buffer, 0, data, data.length - count, count);
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static void deleteAll(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File f : files)
+				deleteAll(f);
+		file.delete();
+	}
+
+	public void testRoundTrip() throws IOException {
+		File archive = new File(root, "backup.quill");
+		BookArchive.writeCompressed(bookDir, archive);
+		assertTrue(archive.exists());
+		assertFalse(new File(archive.getPath() + Book.TEMP_FILE_SUFFIX).exists());
+		assertTrue(BookArchive.isCompressed(archive));
+		assertTrue("Page data should compress", archive.length() < pageData.length);
+
+		ZipFile zip = BookArchive.openCompressed(archive);
+		try {
+			assertTrue(Arrays.equals(pageData, readFully(BookArchive.getInputStream(zip, PAGE_FILE))));
+			assertTrue(Arrays.equals(imageData, readFully(BookArchive.getInputStream(zip, IMAGE_FILE))));
+			try {
+				BookArchive.getInputStream(zip, "page_1" + Book.TEMP_FILE_SUFFIX);
+				fail("Temporary files must not be archived");
+			} catch (IOException e) {}
+		} finally {
+			zip.close();
+		}
+
+		File dest = new File(root, "extracted");
+		assertTrue(dest.mkdir());
+		assertEquals(uuid, BookArchive.extract(archive, dest));
+		assertTrue(Arrays.equals(pageData, readFully(new FileInputStream(new File(dest, PAGE_FILE)))));
+		assertTrue(Arrays.equals(imageData, readFully(new FileInputStream(new File(dest, IMAGE_FILE)))));
+		assertEquals(3, dest.list().length);
+	}
+
+	public void testNotCompressed() throws IOException {
+		File file = new File(root, "empty.tar");
+		writeFile(file, new byte[1024]);
+		assertFalse(BookArchive.isCompressed(file));
+	}
+
+	public void testFailedWriteIsCleanedUp() throws IOException {
+		assertTrue(new File(bookDir, "subdirectory").mkdir());
+		File archive = new File(root, "backup.quill");
+		try {
+			BookArchive.writeCompressed(bookDir, archive);
+			fail("Directories cannot be archived");
+		} catch (IOException e) {}
+		assertFalse(archive.exists());
+		assertFalse(new File(archive.getPath() + Book.TEMP_FILE_SUFFIX).exists());
+	}
+}
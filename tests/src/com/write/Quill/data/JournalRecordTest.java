@@ -0,0 +1,88 @@
+package com.write.Quill.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Append records to a journal and replay them
+ *
+ * @author vbraun
+ *
+ */
+public class JournalRecordTest extends TestCase {
+
+	private LinkedList<byte[]> records;
+	private byte[] journal;
+
+	@Override
+	protected void setUp() throws IOException {
+		Random random = new Random(8);
+		records = new LinkedList<byte[]>();
+		for (int i = 0; i < 20; i++) {
+			byte[] record = new byte[random.nextInt(1000)];
+			random.nextBytes(record);
+			records.add(record);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		// the journal is appended to by each save
+		for (byte[] record : records.subList(0, 10))
+			JournalRecord.write(out, record);
+		for (byte[] record : records.subList(10, 20))
+			JournalRecord.write(out, record);
+		out.close();
+		journal = bytes.toByteArray();
+	}
+
+	private static DataInputStream open(byte[] data) {
+		return new DataInputStream(new ByteArrayInputStream(data));
+	}
+
+	public void testReplay() throws IOException {
+		DataInputStream in = open(journal);
+		for (byte[] expected : records)
+			assertTrue(Arrays.equals(expected, JournalRecord.read(in)));
+		assertNull(JournalRecord.read(in));
+	}
+
+	public void testEmpty() throws IOException {
+		assertNull(JournalRecord.read(open(new byte[0])));
+	}
+
+	/**
+	 * The app was killed while appending the last record
+	 */
+	public void testTruncated() throws IOException {
+		int lastLength = records.getLast().length;
+		for (int cut = 1; cut < lastLength + 12; cut += 7) {
+			DataInputStream in = open(Arrays.copyOf(journal, journal.length - cut));
+			for (byte[] expected : records.subList(0, 19))
+				assertTrue(Arrays.equals(expected, JournalRecord.read(in)));
+			try {
+				JournalRecord.read(in);
+				fail("Truncated record must not be replayed");
+			} catch (EOFException e) {}
+		}
+	}
+
+	public void testChecksumMismatch() throws IOException {
+		byte[] corrupt = journal.clone();
+		// a data byte of the first record
+		corrupt[12] ^= 0x10;
+		try {
+			JournalRecord.read(open(corrupt));
+			fail("Corrupt record must not be replayed");
+		} catch (EOFException e) {
+			fail("Corrupt record is not truncated");
+		} catch (IOException e) {}
+	}
+}
@@ -0,0 +1,117 @@
+package name.vbraun.view.write;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+/**
+ * Read the strokes of version 6 pages and save them in the current format
+ *
+ * @author vbraun
+ *
+ */
+public class LegacyFormatTest extends TestCase {
+
+	/**
+	 * Write the strokes like version 6 pages did, one stroke after the other
+	 * @param block The strokes
+	 * @param strokeVersion The version of each stroke record, 1 or 2
+	 */
+	private static byte[] writeLegacy(StrokeBlock block, int strokeVersion) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int[] headers = block.getHeaders();
+		float[] points = block.getPoints();
+		out.writeInt(headers.length / 4);
+		int pos = 0;
+		for (int i = 0; i < headers.length; i += 4) {
+			out.writeInt(strokeVersion);
+			out.writeInt(headers[i]);
+			out.writeInt(headers[i + 1]);
+			out.writeInt(headers[i + 2]);
+			out.writeInt(headers[i + 3]);
+			for (int j = 0; j < headers[i + 3] * StrokeStore.STRIDE; j++)
+				out.writeFloat(points[pos++]);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static StrokeBlock readLegacy(byte[] data, BitSet simplify) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		StrokeBlock block = StrokeBlock.readLegacyBlock(in, simplify);
+		assertEquals("The whole stroke list must be read", 0, in.available());
+		return block;
+	}
+
+	public void testVersion6ToVersion8() throws IOException {
+		StrokeBlock original = StrokeBlockTest.randomBlock(300, new Random(5));
+		BitSet simplify = new BitSet();
+		StrokeBlock legacy = readLegacy(writeLegacy(original, 2), simplify);
+		assertTrue(simplify.isEmpty());
+		StrokeBlockTest.assertSameBlock(original, legacy);
+		// saving the page again writes a stroke block
+		StrokeBlock saved = StrokeBlockTest.read(StrokeBlockTest.write(legacy));
+		StrokeBlockTest.assertSameBlock(original, saved);
+	}
+
+	public void testStrokeVersion1() throws IOException {
+		StrokeBlock original = StrokeBlockTest.randomBlock(10, new Random(6));
+		BitSet simplify = new BitSet();
+		StrokeBlock legacy = readLegacy(writeLegacy(original, 1), simplify);
+		assertEquals(10, simplify.cardinality());
+		int[] expected = original.getHeaders();
+		int[] actual = legacy.getHeaders();
+		for (int i = 0; i < expected.length; i += 4)
+			assertEquals("thickness quantization", 2 * expected[i + 1], actual[i + 1]);
+	}
+
+	public void testUnknownStrokeVersion() throws IOException {
+		StrokeBlock original = StrokeBlockTest.randomBlock(3, new Random(7));
+		try {
+			readLegacy(writeLegacy(original, 3), new BitSet());
+			fail("Unknown stroke version must be detected");
+		} catch (IOException e) {}
+	}
+
+	public void testTooManyPoints() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(1);
+		out.writeInt(2);
+		out.writeInt(0);
+		out.writeInt(3);
+		out.writeInt(0);
+		out.writeInt(Integer.MAX_VALUE);
+		out.close();
+		try {
+			readLegacy(bytes.toByteArray(), new BitSet());
+			fail("Number of points larger than the data must be detected");
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * The journal refers to graphics by id, so pages without saved ids must
+	 * get the same ids every time they are loaded
+	 */
+	public void testLegacyIds() {
+		UUID uuid = UUID.fromString("01234567-89ab-cdef-0123-456789abcdef");
+		HashSet<Long> ids = new HashSet<Long>();
+		for (long n = 0; n < 10000; n++) {
+			long id = Page.legacyId(uuid, n);
+			assertTrue(id != 0);
+			assertEquals(id, Page.legacyId(uuid, n));
+			assertTrue("ids must be unique", ids.add(id));
+		}
+		UUID other = UUID.fromString("01234567-89ab-cdef-0123-456789abcdee");
+		assertTrue(Page.legacyId(uuid, 0) != Page.legacyId(other, 0));
+	}
+}
@@ -0,0 +1,86 @@
+package name.vbraun.view.write;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compare the LongHashMap with a HashMap under random insertions and removals
+ *
+ * @author vbraun
+ *
+ */
+public class LongHashMapTest extends TestCase {
+
+	public void testPutGetRemove() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		map.put(1, "one");
+		map.put(-1, "minus one");
+		map.put(Long.MIN_VALUE, "min");
+		assertEquals(3, map.size());
+		assertEquals("one", map.get(1));
+		assertEquals("minus one", map.get(-1));
+		assertEquals("min", map.get(Long.MIN_VALUE));
+		assertNull(map.get(2));
+		assertNull(map.get(0));
+		map.put(1, "uno");
+		assertEquals(3, map.size());
+		assertEquals("uno", map.get(1));
+		map.remove(1);
+		map.remove(2);
+		map.remove(0);
+		assertEquals(2, map.size());
+		assertNull(map.get(1));
+		map.clear();
+		assertEquals(0, map.size());
+		assertNull(map.get(-1));
+	}
+
+	public void testZeroKey() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		try {
+			map.put(0, "zero");
+			fail("The key 0 is reserved");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	public void testRandomOperations() {
+		Random random = new Random(42);
+		LongHashMap<Long> map = new LongHashMap<Long>();
+		HashMap<Long, Long> reference = new HashMap<Long, Long>();
+		// a small key range, so that there are many collisions and removals
+		for (int i = 0; i < 100000; i++) {
+			long key = 1 + random.nextInt(2000);
+			if (random.nextInt(3) == 0) {
+				map.remove(key);
+				reference.remove(key);
+			} else {
+				map.put(key, Long.valueOf(i));
+				reference.put(key, Long.valueOf(i));
+			}
+		}
+		assertEquals(reference.size(), map.size());
+		for (long key = 1; key <= 2000; key++)
+			assertEquals(reference.get(key), map.get(key));
+	}
+
+	public void testRandomKeys() {
+		Random random = new Random(7);
+		LongHashMap<Long> map = new LongHashMap<Long>();
+		HashMap<Long, Long> reference = new HashMap<Long, Long>();
+		for (int i = 0; i < 50000; i++) {
+			long key = random.nextLong();
+			if (key == 0) continue;
+			map.put(key, key);
+			reference.put(key, key);
+		}
+		assertEquals(reference.size(), map.size());
+		for (Map.Entry<Long, Long> entry : reference.entrySet())
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		for (Long key : reference.keySet())
+			map.remove(key);
+		assertEquals(0, map.size());
+	}
+}
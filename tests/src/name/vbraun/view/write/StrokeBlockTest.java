@@ -0,0 +1,157 @@
+package name.vbraun.view.write;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Write stroke blocks and read them back
+ *
+ * @author vbraun
+ *
+ */
+public class StrokeBlockTest extends TestCase {
+
+	/**
+	 * A block with random strokes that look like handwriting
+	 * @param nStrokes The number of strokes
+	 * @param random
+	 */
+	protected static StrokeBlock randomBlock(int nStrokes, Random random) {
+		int[] headers = new int[4 * nStrokes];
+		int floats = 0;
+		for (int i = 0; i < headers.length; i += 4) {
+			headers[i] = random.nextInt();
+			headers[i + 1] = random.nextInt(40);
+			headers[i + 2] = random.nextInt(2);
+			headers[i + 3] = 2 + random.nextInt(100);
+			floats += headers[i + 3] * StrokeStore.STRIDE;
+		}
+		float[] points = new float[floats];
+		float x = random.nextFloat(), y = random.nextFloat();
+		for (int j = 0; j < floats; j += StrokeStore.STRIDE) {
+			x += (random.nextFloat() - 0.5f) / 100;
+			y += (random.nextFloat() - 0.5f) / 100;
+			points[j] = x;
+			points[j + 1] = y;
+			points[j + 2] = random.nextFloat();
+		}
+		return new StrokeBlock(headers, points);
+	}
+
+	protected static byte[] write(StrokeBlock block) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		block.writeTo(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	protected static StrokeBlock read(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		StrokeBlock block = StrokeBlock.readBlock(in);
+		assertEquals("The whole block must be read", 0, in.available());
+		return block;
+	}
+
+	/**
+	 * Compare the bit patterns, so that NaN and negative zero count as well
+	 */
+	protected static void assertSameBlock(StrokeBlock expected, StrokeBlock actual) {
+		assertTrue(Arrays.equals(expected.getHeaders(), actual.getHeaders()));
+		float[] e = expected.getPoints();
+		float[] a = actual.getPoints();
+		assertEquals(e.length, a.length);
+		for (int i = 0; i < e.length; i++)
+			assertEquals("point "+i, Float.floatToRawIntBits(e[i]), Float.floatToRawIntBits(a[i]));
+	}
+
+	public void testEmpty() throws IOException {
+		StrokeBlock block = new StrokeBlock(new int[0], new float[0]);
+		assertSameBlock(block, read(write(block)));
+	}
+
+	public void testRaw() throws IOException {
+		// below the compression threshold
+		StrokeBlock block = new StrokeBlock(new int[] {0xff000000, 3, 0, 2},
+				new float[] {0.1f, 0.2f, 0.5f, 0.3f, 0.4f, 1f});
+		byte[] data = write(block);
+		assertSameBlock(block, read(data));
+	}
+
+	public void testDeltaDeflate() throws IOException {
+		StrokeBlock block = randomBlock(200, new Random(1));
+		byte[] data = write(block);
+		assertSameBlock(block, read(data));
+		assertTrue("Handwriting should compress", data.length < 4 * block.getPoints().length);
+	}
+
+	public void testSpecialValues() throws IOException {
+		float[] special = {Float.NaN, Float.intBitsToFloat(0x7fc12345), -0f, 0f,
+				Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE,
+				-Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, 1e-40f};
+		StrokeBlock block = randomBlock(100, new Random(2));
+		float[] points = block.getPoints();
+		for (int i = 0; i < points.length; i += 7)
+			points[i] = special[i % special.length];
+		assertSameBlock(block, read(write(block)));
+	}
+
+	public void testTruncated() throws IOException {
+		byte[] data = write(randomBlock(100, new Random(3)));
+		try {
+			read(Arrays.copyOf(data, data.length - 10));
+			fail("Truncated block must not be read");
+		} catch (IOException e) {}
+	}
+
+	public void testCorrupt() throws IOException {
+		StrokeBlock block = randomBlock(100, new Random(4));
+		byte[] data = write(block);
+		// the number of points of the first stroke
+		data[4 + 15] ^= 1;
+		try {
+			read(data);
+			fail("Stroke data size mismatch must be detected");
+		} catch (IOException e) {}
+	}
+
+	public void testTooManyStrokes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(Integer.MAX_VALUE / 2);
+		out.writeInt(0);
+		out.close();
+		try {
+			read(bytes.toByteArray());
+			fail("Number of strokes larger than the data must be detected");
+		} catch (IOException e) {}
+	}
+
+	public void testNegativeCompressedLength() throws IOException {
+		byte[] data = write(randomBlock(100, new Random(5)));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int nStrokes = in.readInt();
+		// after the stroke headers, the encoding and the raw length
+		int offset = 4 + 16 * nStrokes + 8;
+		data[offset] = (byte) 0x80;
+		try {
+			read(data);
+			fail("Negative compressed length must be detected");
+		} catch (IOException e) {}
+	}
+
+	public void testUnknownTool() throws IOException {
+		StrokeBlock block = new StrokeBlock(new int[] {0, 3, 1000, 2}, new float[6]);
+		try {
+			read(write(block));
+			fail("Tool out of range must be detected");
+		} catch (IOException e) {}
+	}
+}